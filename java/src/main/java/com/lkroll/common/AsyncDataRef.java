@@ -0,0 +1,65 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import io.netty.buffer.ByteBuf;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A DataRef that can also be read and written without blocking the caller.
+ *
+ * The returned futures may complete on an I/O thread, so don't do anything
+ * expensive in the callbacks. The ref retains itself for the duration of each
+ * operation, so it's fine to release it before the future completes.
+ * Failures (including bounds violations) are reported via the future.
+ *
+ * @author lkroll
+ */
+public interface AsyncDataRef extends DataRef {
+
+    /**
+     * Extracts the range [start, end) of bytes from the data
+     *
+     * @param start position of the first byte to extract
+     * @param end position of the first byte to exclude
+     * @return a future with the data between [start, end)
+     */
+    public CompletableFuture<byte[]> readAsync(long start, long end);
+
+    /**
+     * Copies newData to the referenced data starting at position start
+     *
+     * @param start position to start from
+     * @param newData data to write
+     * @return a future that completes once all data has been written
+     */
+    public CompletableFuture<Void> writeAsync(long start, byte[] newData);
+
+    /**
+     * Move the whole content into the provided ByteBuf.
+     *
+     * Writable space is reserved in the buffer immediately, but its writer
+     * index is only advanced once the data is there, so don't touch the buffer
+     * until the future completed.
+     *
+     * @param buffer target buffer
+     * @return a future that completes once all data has been copied
+     */
+    public CompletableFuture<Void> copyToAsync(ByteBuf buffer);
+}
@@ -18,19 +18,51 @@
 */
 package com.lkroll.common;
 
+import com.google.common.primitives.UnsignedBytes;
 import io.netty.buffer.ByteBuf;
+import java.nio.ByteOrder;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A DataRef where the underlying storage is a byte[]
  *
+ * The {@link AsyncDataRef} operations simply complete immediately.
+ *
+ * Comparisons and equality work on 8 bytes at a time. The natural ordering is
+ * by length first and then by signed bytes, use {@link #UNSIGNED_LEXICOGRAPHIC}
+ * for the usual on-disk key ordering. {@link #hashCode()} is cached, so
+ * don't modify the data via other views (or the backing array) while a ref is
+ * used as a key.
+ *
  * @author lkroll
  */
-public class ByteArrayRef implements Comparable<ByteArrayRef>, DataRef {
+public class ByteArrayRef implements Comparable<ByteArrayRef>, AsyncDataRef {
     
+    /**
+     * Orders refs by unsigned bytes, with a shorter ref before any longer ref
+     * it is a prefix of (like memcmp or Guava's
+     * {@link UnsignedBytes#lexicographicalComparator()}).
+     */
+    public static final Comparator<ByteArrayRef> UNSIGNED_LEXICOGRAPHIC = new Comparator<ByteArrayRef>() {
+        @Override
+        public int compare(ByteArrayRef x, ByteArrayRef y) {
+            return x.compareUnsigned(y);
+        }
+    };
+
+    // xxHash64 primes
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
     public final int begin;
     public final int length;
     private final byte[] backingArray;
+    private int hash = 0; // cached hashCode, 0 if not yet computed
 
     @Override
     public void copyTo(ByteBuf buffer) {
@@ -41,6 +73,35 @@ public class ByteArrayRef implements Comparable<ByteArrayRef>, DataRef {
     public Iterable<DataRef> split(long numberOfChunks, int chunkSize) {
         return new BARIterator(chunkSize);
     }
+
+    @Override
+    public CompletableFuture<byte[]> readAsync(long start, long end) {
+        try {
+            return CompletableFuture.completedFuture(dereference(start, end));
+        } catch (RuntimeException ex) {
+            return RAFileRef.failed(ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(long start, byte[] newData) {
+        try {
+            assign(start, newData);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException ex) {
+            return RAFileRef.failed(ex);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> copyToAsync(ByteBuf buffer) {
+        try {
+            copyTo(buffer);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException ex) {
+            return RAFileRef.failed(ex);
+        }
+    }
     
     /**
      * Produce a new ref by wrapping the provided bytes
@@ -97,6 +158,7 @@ public class ByteArrayRef implements Comparable<ByteArrayRef>, DataRef {
             throw new IndexOutOfBoundsException("Asked for index " + ii + " but length is only " + length);
         }
         backingArray[begin + ii] = val;
+        hash = 0;
     }
 
     /* NOTE: This code just asks to be abused such that it circumvents correct 
@@ -150,14 +212,11 @@ public class ByteArrayRef implements Comparable<ByteArrayRef>, DataRef {
         if (this.length != that.length) {
             return this.length - that.length;
         }
-        for (int i = 0; i < this.length; i++) {
-            byte thisB = this.backingArray[begin + i];
-            byte thatB = that.backingArray[that.begin + i];
-            if (thisB != thatB) {
-                return thisB - thatB;
-            }
+        int i = mismatch(this.backingArray, this.begin, that.backingArray, that.begin, this.length);
+        if (i < 0) {
+            return 0;
         }
-        return 0;
+        return this.backingArray[begin + i] - that.backingArray[that.begin + i];
     }
     
     public int compareTo(byte[] that) {
@@ -167,20 +226,37 @@ public class ByteArrayRef implements Comparable<ByteArrayRef>, DataRef {
         if (this.length != that.length) {
             return this.length - that.length;
         }
-        for (int i = 0; i < this.length; i++) {
-            byte thisB = this.backingArray[begin + i];
-            byte thatB = that[i];
-            if (thisB != thatB) {
-                return thisB - thatB;
-            }
+        int i = mismatch(this.backingArray, this.begin, that, 0, this.length);
+        if (i < 0) {
+            return 0;
         }
-        return 0;
+        return this.backingArray[begin + i] - that[i];
+    }
+
+    /**
+     * Compares unsigned bytes lexicographically, with a prefix ordered before
+     * longer refs.
+     *
+     * @param that the ref to compare to
+     * @return negative, zero, or positive if this is less, equal, or greater than that
+     */
+    public int compareUnsigned(ByteArrayRef that) {
+        int l = Math.min(this.length, that.length);
+        int i = mismatch(this.backingArray, this.begin, that.backingArray, that.begin, l);
+        if (i < 0) {
+            return this.length - that.length;
+        }
+        return UnsignedBytes.compare(this.backingArray[begin + i], that.backingArray[that.begin + i]);
     }
     
     @Override
     public boolean equals(Object that) {
         if (that instanceof ByteArrayRef) {
-            return this.compareTo((ByteArrayRef) that) == 0;
+            ByteArrayRef thatRef = (ByteArrayRef) that;
+            if ((this.hash != 0) && (thatRef.hash != 0) && (this.hash != thatRef.hash)) {
+                return false;
+            }
+            return this.compareTo(thatRef) == 0;
         } else if (that instanceof byte[]) {
             return this.compareTo((byte[]) that) == 0;
         }
@@ -189,14 +265,53 @@ public class ByteArrayRef implements Comparable<ByteArrayRef>, DataRef {
     
     @Override
     public int hashCode() {
-        int hash = 7;
-        if (this.backingArray == null) {
-            return 97 * hash; // + 0
+        int h = hash;
+        if (h == 0) {
+            h = 7;
+            if (this.backingArray == null) {
+                return 97 * h; // + 0
+            }
+            for (int i = this.begin; i < (this.begin + this.length); i++) {
+                h = 97 * h + backingArray[i];
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * Drops the cached hash after the data was written without going through assign.
+     */
+    void invalidateHash() {
+        hash = 0;
+    }
+
+    /**
+     * A higher quality 64bit hash of the content, computed 8 bytes at a time
+     * with xxHash64 style mixing.
+     *
+     * It is not cached and not compatible with actual xxHash64 values.
+     *
+     * @return the hash of the referenced data
+     */
+    public long hash64() {
+        long h = P5 + length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long k = Long.reverseBytes(word(backingArray, begin + i)) * P2; // little endian words
+            h ^= Long.rotateLeft(k, 31) * P1;
+            h = Long.rotateLeft(h, 27) * P1 + P4;
         }
-        for (int i = this.begin; i < (this.begin + this.length); i++) {
-            hash = 97 * hash + backingArray[i];
+        for (; i < length; i++) {
+            h ^= (backingArray[begin + i] & 0xFF) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
         }
-        return hash;
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
     }
     
     @Override
@@ -232,17 +347,86 @@ public class ByteArrayRef implements Comparable<ByteArrayRef>, DataRef {
         if ((endi > length)) {
             throw new IndexOutOfBoundsException("Asked for length " + newData.length + " but length is only " + length);
         }
-        System.arraycopy(newData, 0, backingArray, (int)start, newData.length);
+        System.arraycopy(newData, 0, backingArray, begin + starti, newData.length);
+        hash = 0;
     }
     
     @Override
     public void assign(long start, DataRef newData) {
         assign(start, newData.dereference());
     }
+
+    @Override
+    public short getShort(long index, ByteOrder order) {
+        short v = (short) getBigEndian(position(index, Short.BYTES), Short.BYTES);
+        return (order == ByteOrder.BIG_ENDIAN) ? v : Short.reverseBytes(v);
+    }
+
+    @Override
+    public int getInt(long index, ByteOrder order) {
+        int v = (int) getBigEndian(position(index, Integer.BYTES), Integer.BYTES);
+        return (order == ByteOrder.BIG_ENDIAN) ? v : Integer.reverseBytes(v);
+    }
+
+    @Override
+    public long getLong(long index, ByteOrder order) {
+        long v = getBigEndian(position(index, Long.BYTES), Long.BYTES);
+        return (order == ByteOrder.BIG_ENDIAN) ? v : Long.reverseBytes(v);
+    }
+
+    @Override
+    public void putShort(long index, short value, ByteOrder order) {
+        short v = (order == ByteOrder.BIG_ENDIAN) ? value : Short.reverseBytes(value);
+        putBigEndian(position(index, Short.BYTES), Short.BYTES, v);
+        hash = 0;
+    }
+
+    @Override
+    public void putInt(long index, int value, ByteOrder order) {
+        int v = (order == ByteOrder.BIG_ENDIAN) ? value : Integer.reverseBytes(value);
+        putBigEndian(position(index, Integer.BYTES), Integer.BYTES, v);
+        hash = 0;
+    }
+
+    @Override
+    public void putLong(long index, long value, ByteOrder order) {
+        long v = (order == ByteOrder.BIG_ENDIAN) ? value : Long.reverseBytes(value);
+        putBigEndian(position(index, Long.BYTES), Long.BYTES, v);
+        hash = 0;
+    }
+
+    /**
+     * Checks that [index, index + width) is within bounds and gives its position in the backing array.
+     */
+    private int position(long index, int width) {
+        if ((index < 0) || (index + width > length)) {
+            throw new IndexOutOfBoundsException("Asked for " + width + " bytes at index " + index + " but length is only " + length);
+        }
+        return begin + (int) index;
+    }
+
+    private long getBigEndian(int pos, int width) {
+        long v = 0;
+        for (int i = 0; i < width; i++) {
+            v = (v << 8) | (backingArray[pos + i] & 0xFFL);
+        }
+        return v;
+    }
+
+    private void putBigEndian(int pos, int width, long v) {
+        for (int i = width - 1; i >= 0; i--) {
+            backingArray[pos + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
     
     @Override
     public void copyTo(DataRef target, long offset) {
-        target.assign(offset, backingArray);
+        if ((begin == 0) && (length == backingArray.length)) {
+            target.assign(offset, backingArray);
+        } else {
+            target.assign(offset, dereference());
+        }
     }
 
     @Override
@@ -264,14 +448,48 @@ public class ByteArrayRef implements Comparable<ByteArrayRef>, DataRef {
         if ((a.length - startA < length) || (b.length - startB < length)) {
             return false;
         }
-        for (int offset = 0; offset < length; offset++) {
-            if (a[startA + offset] != b[startB + offset]) {
-                return false;
+        return mismatch(a, startA, b, startB, length) < 0;
+    }
+
+    /**
+     * Finds the first index where the ranges differ, comparing 8 bytes at a time.
+     *
+     * (Arrays.mismatch for ranges, which we can't use on Java 8)
+     *
+     * @return the relative index of the first differing byte or -1 if the ranges are equal
+     */
+    static int mismatch(byte[] a, int startA, byte[] b, int startB, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long x = word(a, startA + i);
+            long y = word(b, startB + i);
+            if (x != y) {
+                return i + (Long.numberOfLeadingZeros(x ^ y) >>> 3);
+            }
+        }
+        for (; i < length; i++) {
+            if (a[startA + i] != b[startB + i]) {
+                return i;
             }
         }
-        return true;
+        return -1;
     }
     
+    /**
+     * Reads 8 bytes as a big endian long, so the first byte is the most
+     * significant (without wrapping the array in a ByteBuffer).
+     */
+    private static long word(byte[] a, int pos) {
+        return ((a[pos] & 0xFFL) << 56)
+                | ((a[pos + 1] & 0xFFL) << 48)
+                | ((a[pos + 2] & 0xFFL) << 40)
+                | ((a[pos + 3] & 0xFFL) << 32)
+                | ((a[pos + 4] & 0xFFL) << 24)
+                | ((a[pos + 5] & 0xFFL) << 16)
+                | ((a[pos + 6] & 0xFFL) << 8)
+                | (a[pos + 7] & 0xFFL);
+    }
+
     public class BARIterator implements Iterator<DataRef>, Iterable<DataRef> {
 
         public int pos = begin;
@@ -283,12 +501,12 @@ public class ByteArrayRef implements Comparable<ByteArrayRef>, DataRef {
         
         @Override
         public boolean hasNext() {
-            return length > pos;
+            return begin + length > pos;
         }
 
         @Override
         public DataRef next() {
-            int chunkLength = Math.min(chunkSize, length-pos);
+            int chunkLength = Math.min(chunkSize, begin + length - pos);
             ByteArrayRef subarea = new ByteArrayRef(pos, chunkLength, backingArray);
             pos += chunkLength;
             return subarea;
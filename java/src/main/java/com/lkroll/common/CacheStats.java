@@ -0,0 +1,312 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import com.lkroll.common.statistics.ExponentialMovingAverage;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records what a cache is doing, for caches that were given one with their
+ * recordStats method.
+ *
+ * Counters are striped {@link LongAdder}s, so recording is cheap even when
+ * many threads share the instance. {@link #snapshot()} reads them all (not
+ * atomically) and snapshots can be subtracted to get the numbers for an
+ * interval. Per second rates are smoothed with an
+ * {@link ExponentialMovingAverage} and are only updated by
+ * {@link #updateRates()}, which should be called periodically (e.g. through
+ * {@link #scheduleRateUpdates(ScheduledExecutorService, long, TimeUnit)}).
+ *
+ * @author lkroll
+ */
+public class CacheStats implements CacheStatsMXBean {
+
+    public static final double DEFAULT_ALPHA = 0.2;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder sizeEvictions = new LongAdder();
+    private final LongAdder expiredEvictions = new LongAdder();
+    private final LongAdder loadSuccesses = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongSupplier ticker;
+    // rates, guarded by this
+    private final ExponentialMovingAverage hitRate;
+    private final ExponentialMovingAverage missRate;
+    private final ExponentialMovingAverage evictionRate;
+    private final ExponentialMovingAverage loadRate;
+    private final ExponentialMovingAverage hitRatio;
+    private Snapshot lastSnapshot;
+    private long lastUpdate;
+    private ObjectName registeredAs = null;
+
+    /**
+     * @param alpha decay coefficient of the smoothed rates
+     * @param ticker the source of time for the rates, in nanoseconds
+     */
+    public CacheStats(double alpha, LongSupplier ticker) {
+        this.ticker = ticker;
+        this.hitRate = new ExponentialMovingAverage(alpha);
+        this.missRate = new ExponentialMovingAverage(alpha);
+        this.evictionRate = new ExponentialMovingAverage(alpha);
+        this.loadRate = new ExponentialMovingAverage(alpha);
+        this.hitRatio = new ExponentialMovingAverage(alpha);
+        this.lastSnapshot = snapshot();
+        this.lastUpdate = ticker.getAsLong();
+    }
+
+    public CacheStats() {
+        this(DEFAULT_ALPHA, System::nanoTime);
+    }
+
+    public void recordHit() {
+        hits.increment();
+    }
+
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    public void recordEviction(LRUCache.EvictionCause cause) {
+        if (cause == LRUCache.EvictionCause.EXPIRED) {
+            expiredEvictions.increment();
+        } else {
+            sizeEvictions.increment();
+        }
+    }
+
+    public void recordLoadSuccess(long nanos) {
+        loadSuccesses.increment();
+        loadNanos.add(nanos);
+    }
+
+    public void recordLoadFailure(long nanos) {
+        loadFailures.increment();
+        loadNanos.add(nanos);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(hits.sum(), misses.sum(), sizeEvictions.sum(), expiredEvictions.sum(),
+                loadSuccesses.sum(), loadFailures.sum(), loadNanos.sum());
+    }
+
+    /**
+     * Feeds the per second rates since the last update into the moving averages.
+     */
+    public synchronized void updateRates() {
+        long now = ticker.getAsLong();
+        double seconds = (now - lastUpdate) / 1e9;
+        if (seconds <= 0.0) {
+            return;
+        }
+        Snapshot current = snapshot();
+        Snapshot diff = current.minus(lastSnapshot);
+        hitRate.addValue(diff.hits / seconds);
+        missRate.addValue(diff.misses / seconds);
+        evictionRate.addValue(diff.evictions() / seconds);
+        loadRate.addValue(diff.loads() / seconds);
+        hitRatio.addValue(diff.hitRatio()); // NaN without requests, which is ignored
+        lastSnapshot = current;
+        lastUpdate = now;
+    }
+
+    public ScheduledFuture<?> scheduleRateUpdates(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleAtFixedRate(this::updateRates, period, period, unit);
+    }
+
+    /**
+     * Registers this as a platform MBean named
+     * {@code com.lkroll.common:type=CacheStats,name=<name>}.
+     */
+    public synchronized ObjectName registerMBean(String name) {
+        if (registeredAs != null) {
+            throw new IllegalStateException("Already registered as " + registeredAs);
+        }
+        try {
+            ObjectName objectName = new ObjectName("com.lkroll.common:type=CacheStats,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registeredAs = objectName;
+            return objectName;
+        } catch (JMException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (registeredAs == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(registeredAs);
+            registeredAs = null;
+        } catch (JMException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        return snapshot().hitRatio();
+    }
+
+    @Override
+    public long getSizeEvictionCount() {
+        return sizeEvictions.sum();
+    }
+
+    @Override
+    public long getExpiredEvictionCount() {
+        return expiredEvictions.sum();
+    }
+
+    @Override
+    public long getLoadSuccessCount() {
+        return loadSuccesses.sum();
+    }
+
+    @Override
+    public long getLoadFailureCount() {
+        return loadFailures.sum();
+    }
+
+    @Override
+    public double getAverageLoadPenaltyNanos() {
+        return snapshot().averageLoadPenaltyNanos();
+    }
+
+    @Override
+    public synchronized double getHitRate() {
+        return hitRate.getMean();
+    }
+
+    @Override
+    public synchronized double getMissRate() {
+        return missRate.getMean();
+    }
+
+    @Override
+    public synchronized double getEvictionRate() {
+        return evictionRate.getMean();
+    }
+
+    @Override
+    public synchronized double getLoadRate() {
+        return loadRate.getMean();
+    }
+
+    @Override
+    public synchronized double getSmoothedHitRatio() {
+        return hitRatio.getMean();
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /**
+     * The counters of a {@link CacheStats} at one point in time, or the
+     * difference between two such points.
+     */
+    public static final class Snapshot {
+
+        public final long hits;
+        public final long misses;
+        public final long sizeEvictions;
+        public final long expiredEvictions;
+        public final long loadSuccesses;
+        public final long loadFailures;
+        public final long loadNanos;
+
+        public Snapshot(long hits, long misses, long sizeEvictions, long expiredEvictions, long loadSuccesses, long loadFailures, long loadNanos) {
+            this.hits = hits;
+            this.misses = misses;
+            this.sizeEvictions = sizeEvictions;
+            this.expiredEvictions = expiredEvictions;
+            this.loadSuccesses = loadSuccesses;
+            this.loadFailures = loadFailures;
+            this.loadNanos = loadNanos;
+        }
+
+        /**
+         * @return what happened between other and this
+         */
+        public Snapshot minus(Snapshot other) {
+            return new Snapshot(hits - other.hits, misses - other.misses, sizeEvictions - other.sizeEvictions,
+                    expiredEvictions - other.expiredEvictions, loadSuccesses - other.loadSuccesses,
+                    loadFailures - other.loadFailures, loadNanos - other.loadNanos);
+        }
+
+        public long requests() {
+            return hits + misses;
+        }
+
+        public long evictions() {
+            return sizeEvictions + expiredEvictions;
+        }
+
+        public long loads() {
+            return loadSuccesses + loadFailures;
+        }
+
+        /**
+         * @return the fraction of requests that were hits, or NaN if there were none
+         */
+        public double hitRatio() {
+            long requests = requests();
+            return (requests == 0) ? Double.NaN : ((double) hits) / requests;
+        }
+
+        /**
+         * @return the mean time spent loading, or NaN if there were no loads
+         */
+        public double averageLoadPenaltyNanos() {
+            long loads = loads();
+            return (loads == 0) ? Double.NaN : ((double) loadNanos) / loads;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheStats(hits=" + hits + ", misses=" + misses + ", hitRatio=" + hitRatio()
+                    + ", sizeEvictions=" + sizeEvictions + ", expiredEvictions=" + expiredEvictions
+                    + ", loadSuccesses=" + loadSuccesses + ", loadFailures=" + loadFailures
+                    + ", averageLoadPenalty=" + averageLoadPenaltyNanos() + "ns)";
+        }
+    }
+}
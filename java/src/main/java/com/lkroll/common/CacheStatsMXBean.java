@@ -0,0 +1,53 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+/**
+ * The JMX view of {@link CacheStats}.
+ *
+ * @author lkroll
+ */
+public interface CacheStatsMXBean {
+
+    public long getHitCount();
+
+    public long getMissCount();
+
+    public double getHitRatio();
+
+    public long getSizeEvictionCount();
+
+    public long getExpiredEvictionCount();
+
+    public long getLoadSuccessCount();
+
+    public long getLoadFailureCount();
+
+    public double getAverageLoadPenaltyNanos();
+
+    public double getHitRate();
+
+    public double getMissRate();
+
+    public double getEvictionRate();
+
+    public double getLoadRate();
+
+    public double getSmoothedHitRatio();
+}
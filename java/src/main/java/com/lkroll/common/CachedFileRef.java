@@ -0,0 +1,442 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.FileRegion;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A DataRef that serves reads of a {@link RAFileRef} from an in-memory block cache.
+ *
+ * The file is divided into fixed size blocks, the most recently used of which
+ * are kept in a bounded {@link LRUCache}. Writes either go straight through
+ * to the file (updating cached blocks on the way), or only mark the cached
+ * block as dirty and get written back on eviction, {@link #flush()} or final
+ * release.
+ *
+ * The file length is read once on construction, as a DataRef can't grow anyway.
+ * Bulk operations that hand the data to somebody else (copyTo, split chunks
+ * going through the file, etc.) flush dirty blocks first.
+ *
+ * The cache takes over the caller's reference to the file and shares its own
+ * reference count with all views produced by {@link #split(long, int)}.
+ *
+ * @author lkroll
+ */
+public class CachedFileRef implements DataRef {
+
+    public static final int DEFAULT_BLOCK_SIZE = 16 * 1024;
+    public static final int DEFAULT_MAX_BLOCKS = 1024;
+
+    public static enum WritePolicy {
+        WRITE_THROUGH,
+        WRITE_BACK;
+    }
+
+    private final BlockCache cache;
+    private final long begin;
+    private final long length;
+
+    public CachedFileRef(RAFileRef file) {
+        this(file, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_BLOCKS, WritePolicy.WRITE_THROUGH);
+    }
+
+    /**
+     * @param file the file to cache (the caller's reference is taken over)
+     * @param blockSize size of each cached block (must be a power of two)
+     * @param maxBlocks maximum number of blocks to keep in memory
+     * @param policy how to handle writes
+     */
+    public CachedFileRef(RAFileRef file, int blockSize, int maxBlocks, WritePolicy policy) {
+        if ((blockSize <= 0) || (Integer.bitCount(blockSize) != 1)) {
+            throw new IllegalArgumentException("blockSize must be a power of two: " + blockSize);
+        }
+        if (maxBlocks <= 0) {
+            throw new IllegalArgumentException("maxBlocks must be positive: " + maxBlocks);
+        }
+        this.cache = new BlockCache(file, blockSize, maxBlocks, policy);
+        this.begin = 0;
+        this.length = cache.fileLength;
+    }
+
+    private CachedFileRef(BlockCache cache, long begin, long length) {
+        this.cache = cache;
+        this.begin = begin;
+        this.length = length;
+        cache.retain();
+    }
+
+    public RAFileRef fileRef() {
+        return cache.file;
+    }
+
+    /**
+     * @return the number of block accesses that were served from memory
+     */
+    public long hits() {
+        synchronized (cache) {
+            return cache.hits;
+        }
+    }
+
+    /**
+     * @return the number of blocks that had to be loaded from the file
+     */
+    public long misses() {
+        synchronized (cache) {
+            return cache.misses;
+        }
+    }
+
+    /**
+     * @return the fraction of block loads served from memory (NaN if there were none)
+     */
+    public double hitRatio() {
+        synchronized (cache) {
+            return ((double) cache.hits) / ((double) (cache.hits + cache.misses));
+        }
+    }
+
+    /**
+     * @return the number of blocks currently in memory
+     */
+    public int cachedBlocks() {
+        synchronized (cache) {
+            return cache.blocks.size();
+        }
+    }
+
+    /**
+     * Writes all dirty blocks back to the file.
+     */
+    public void flush() {
+        synchronized (cache) {
+            cache.flush();
+        }
+    }
+
+    @Override
+    public void retain() {
+        cache.retain();
+    }
+
+    @Override
+    public void release() {
+        cache.release();
+    }
+
+    @Override
+    public long size() {
+        return length;
+    }
+
+    @Override
+    public byte[] dereference() {
+        if (length == 0) {
+            return new byte[0];
+        }
+        return dereference(0, length);
+    }
+
+    @Override
+    public byte dereference(long i) {
+        if ((i >= length) || (i < 0)) {
+            throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + length);
+        }
+        long pos = begin + i;
+        synchronized (cache) {
+            return cache.block(cache.blockIndex(pos), true).data[cache.blockOffset(pos)];
+        }
+    }
+
+    @Override
+    public byte[] dereference(long start, long end) {
+        if ((start >= length) || (start < 0)) {
+            throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length);
+        }
+        if ((end > length) || (end < start)) {
+            throw new IndexOutOfBoundsException("Asked for end " + end + " but length is only " + length + " and start is" + start);
+        }
+        long l = end - start;
+        if (l > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("Range doesn't fit into an integer: " + l);
+        }
+        byte[] data = new byte[(int) l];
+        synchronized (cache) {
+            if (cache.isLargeRange(l)) {
+                // don't wipe the whole cache for a single bulk read
+                cache.flush();
+                cache.file.copyTo(data, 0, begin + start, data.length);
+                return data;
+            }
+            long pos = begin + start;
+            int done = 0;
+            while (done < data.length) {
+                Block block = cache.block(cache.blockIndex(pos), true);
+                int offset = cache.blockOffset(pos);
+                int n = Math.min(data.length - done, block.data.length - offset);
+                System.arraycopy(block.data, offset, data, done, n);
+                done += n;
+                pos += n;
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public void assign(long i, byte val) {
+        if ((i >= length) || (i < 0)) {
+            throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + length);
+        }
+        assign(i, new byte[]{val});
+    }
+
+    @Override
+    public void assign(long start, byte[] newData) {
+        checkAssignBounds(start, newData.length);
+        long pos = begin + start;
+        synchronized (cache) {
+            if (cache.policy == WritePolicy.WRITE_THROUGH) {
+                cache.file.assign(pos, newData);
+            }
+            boolean writeBack = cache.policy == WritePolicy.WRITE_BACK;
+            int done = 0;
+            while (done < newData.length) {
+                Block block = cache.block(cache.blockIndex(pos), writeBack);
+                int offset = cache.blockOffset(pos);
+                int n = Math.min(newData.length - done, cache.blockSize - offset);
+                if (block != null) {
+                    System.arraycopy(newData, done, block.data, offset, n);
+                    block.dirty |= writeBack;
+                }
+                done += n;
+                pos += n;
+            }
+        }
+    }
+
+    @Override
+    public void assign(long start, DataRef newData) {
+        long l = newData.size();
+        checkAssignBounds(start, l);
+        synchronized (cache) {
+            long pos = begin + start;
+            cache.flush();
+            cache.invalidate(cache.blockIndex(pos), cache.blockIndex(pos + l - 1));
+            cache.file.assign(pos, newData);
+        }
+    }
+
+    @Override
+    public void copyTo(DataRef target, long offset) {
+        flush();
+        cache.file.copyTo(target, offset, begin, length);
+    }
+
+    @Override
+    public void copyTo(byte[] target, int offset) {
+        if (length > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("length doesn't fit into an integer: " + length);
+        }
+        flush();
+        cache.file.copyTo(target, offset, begin, (int) length);
+    }
+
+    @Override
+    public void copyTo(ByteBuf buffer) {
+        if (length > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("length doesn't fit into an integer: " + length);
+        }
+        flush();
+        cache.file.copyTo(buffer, begin, (int) length);
+    }
+
+    @Override
+    public FileRegion toFileRegion() {
+        flush();
+        return new FileRefRegion(this, cache.file.getChannel(), begin, length);
+    }
+
+    @Override
+    public Iterable<DataRef> split(long numberOfChunks, int chunkSize) {
+        return new CFRIterator(chunkSize);
+    }
+
+    private void checkAssignBounds(long start, long l) {
+        if ((start > length) || (start < 0) || ((start == length) && (l > 0))) {
+            throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length);
+        }
+        if (start + l > length) {
+            throw new IndexOutOfBoundsException("Asked for length " + l + " but length is only " + length);
+        }
+    }
+
+    private static final class Block {
+
+        private final long index;
+        private final byte[] data;
+        private boolean dirty = false;
+
+        private Block(long index, byte[] data) {
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Shared state of a cached file and all its views.
+     *
+     * Everything apart from the reference count is guarded by the instance's monitor.
+     */
+    private static final class BlockCache implements LRUCache.EvictionHandler<Long, Block> {
+
+        private final RAFileRef file;
+        private final long fileLength;
+        private final int blockSize;
+        private final int shift;
+        private final int maxBlocks;
+        private final WritePolicy policy;
+        private final LRUCache<Long, Block> blocks;
+        private final AtomicLong rc = new AtomicLong(1);
+        private long hits = 0;
+        private long misses = 0;
+
+        private BlockCache(RAFileRef file, int blockSize, int maxBlocks, WritePolicy policy) {
+            this.file = file;
+            this.fileLength = file.size();
+            this.blockSize = blockSize;
+            this.shift = Integer.numberOfTrailingZeros(blockSize);
+            this.maxBlocks = maxBlocks;
+            this.policy = policy;
+            this.blocks = new LRUCache<>(maxBlocks, this);
+        }
+
+        private long blockIndex(long pos) {
+            return pos >>> shift;
+        }
+
+        private int blockOffset(long pos) {
+            return (int) (pos & (blockSize - 1));
+        }
+
+        private boolean isLargeRange(long l) {
+            return l > (((long) maxBlocks) * blockSize) / 2;
+        }
+
+        /**
+         * Looks up the block, loading it from the file on a miss if load is true.
+         */
+        private Block block(long index, boolean load) {
+            Block block = blocks.get(index);
+            if (!load) {
+                return block; // write-through updates are not lookups
+            }
+            if (block != null) {
+                hits++;
+                return block;
+            }
+            misses++;
+            long blockStart = index << shift;
+            long blockEnd = Math.min(fileLength, blockStart + blockSize);
+            block = new Block(index, file.dereference(blockStart, blockEnd));
+            blocks.put(index, block);
+            return block;
+        }
+
+        private void invalidate(long firstIndex, long lastIndex) {
+            for (long i = firstIndex; i <= lastIndex; i++) {
+                blocks.remove(i);
+            }
+        }
+
+        private void flush() {
+            if (policy == WritePolicy.WRITE_BACK) {
+                for (Block block : blocks.values()) {
+                    writeBack(block);
+                }
+            }
+        }
+
+        private void writeBack(Block block) {
+            if (block.dirty) {
+                file.assign(block.index << shift, block.data);
+                block.dirty = false;
+            }
+        }
+
+        @Override
+        public void evicted(Map.Entry<Long, Block> entry) {
+            writeBack(entry.getValue());
+        }
+
+        private void retain() {
+            rc.incrementAndGet();
+        }
+
+        private void release() {
+            long count = rc.decrementAndGet();
+            if (count == 0) {
+                synchronized (this) {
+                    flush();
+                    blocks.clear();
+                }
+                file.release();
+            }
+            if (count < 0) {
+                throw new IllegalStateException("Object was already deallocated: " + file.getFile());
+            }
+        }
+    }
+
+    public class CFRIterator implements Iterator<DataRef>, Iterable<DataRef> {
+
+        public long pos = 0;
+        private final int chunkSize;
+
+        private CFRIterator(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return length > pos;
+        }
+
+        @Override
+        public DataRef next() {
+            int chunkLength = (int) Math.min((long) chunkSize, length - pos); // the smaller one must be int sized
+            CachedFileRef subarea = new CachedFileRef(cache, begin + pos, chunkLength);
+            pos += chunkLength;
+            return subarea;
+        }
+
+        @Override
+        public Iterator<DataRef> iterator() {
+            return this;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not yet implemented!");
+        }
+    }
+}
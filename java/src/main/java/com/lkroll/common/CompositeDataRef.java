@@ -0,0 +1,405 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A DataRef presenting an ordered list of DataRefs as one contiguous DataRef.
+ *
+ * Offsets are resolved to components with a binary search over the
+ * components' start positions, i.e. in O(log n). {@link #split(long, int)}
+ * produces views into the same list of components, so chunks may span
+ * component boundaries without copying anything.
+ *
+ * The composite takes over the caller's references to the components and
+ * releases them once its own reference count (shared with all its views)
+ * drops to zero.
+ *
+ * @author lkroll
+ */
+public class CompositeDataRef implements DataRef {
+
+    private final Parts parts;
+    private final long begin;
+    private final long length;
+
+    public static CompositeDataRef of(DataRef... components) {
+        return new CompositeDataRef(Arrays.asList(components));
+    }
+
+    public CompositeDataRef(List<? extends DataRef> components) {
+        this.parts = new Parts(components);
+        this.begin = 0;
+        this.length = parts.size;
+    }
+
+    private CompositeDataRef(Parts parts, long begin, long length) {
+        this.parts = parts;
+        this.begin = begin;
+        this.length = length;
+        parts.retain();
+    }
+
+    /**
+     * @return the number of (non-empty) components of the whole composite
+     */
+    public int numberOfComponents() {
+        return parts.refs.length;
+    }
+
+    /**
+     * Produces a view of the range [start, start + length) of this ref
+     * without copying.
+     *
+     * The view shares (and retains) the underlying components.
+     *
+     * @param start position of the first byte in the view
+     * @param length size of the view
+     * @return the new view
+     */
+    public CompositeDataRef slice(long start, long length) {
+        if ((start < 0) || (length < 0) || (start + length > this.length)) {
+            throw new IndexOutOfBoundsException("Asked for slice [" + start + ", " + (start + length) + ") but length is only " + this.length);
+        }
+        return new CompositeDataRef(parts, begin + start, length);
+    }
+
+    /**
+     * Assembles the referenced data as a CompositeByteBuf.
+     *
+     * Components that are backed by memory ({@link ByteArrayRef},
+     * {@link DirectBufferRef}) are added without copying, everything else
+     * is copied into an intermediate buffer.
+     *
+     * The caller is responsible for releasing the returned buffer.
+     *
+     * @return a readable buffer over the data
+     */
+    public CompositeByteBuf toByteBuf() {
+        final CompositeByteBuf composite = Unpooled.compositeBuffer(Math.max(2, parts.refs.length));
+        forEachSegment(0, length, (part, partStart, partEnd, pos) -> {
+            int l = (int) (partEnd - partStart);
+            ByteBuf buf;
+            if (part instanceof ByteArrayRef) {
+                ByteArrayRef bar = (ByteArrayRef) part;
+                buf = Unpooled.wrappedBuffer(bar.getBackingArray(), bar.begin + (int) partStart, l);
+            } else if (part instanceof DirectBufferRef) {
+                buf = ((DirectBufferRef) part).retainedSlice().slice((int) partStart, l);
+            } else {
+                buf = Unpooled.buffer(l, l);
+                copySegment(part, partStart, partEnd, buf);
+            }
+            composite.addComponent(true, buf);
+        });
+        return composite;
+    }
+
+    @Override
+    public void retain() {
+        parts.retain();
+    }
+
+    @Override
+    public void release() {
+        parts.release();
+    }
+
+    public long rc() { // for debugging only!
+        return parts.rc.get();
+    }
+
+    @Override
+    public long size() {
+        return length;
+    }
+
+    @Override
+    public byte[] dereference() {
+        if (length == 0) {
+            return new byte[0];
+        }
+        return dereference(0, length);
+    }
+
+    @Override
+    public byte dereference(long i) {
+        if ((i >= length) || (i < 0)) {
+            throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + length);
+        }
+        long pos = begin + i;
+        int idx = parts.indexOf(pos);
+        return parts.refs[idx].dereference(pos - parts.offsets[idx]);
+    }
+
+    @Override
+    public byte[] dereference(long start, long end) {
+        if ((start >= length) || (start < 0)) {
+            throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length);
+        }
+        if ((end > length) || (end < start)) {
+            throw new IndexOutOfBoundsException("Asked for end " + end + " but length is only " + length + " and start is" + start);
+        }
+        long l = end - start;
+        if (l > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("Range doesn't fit into an integer: " + l);
+        }
+        byte[] data = new byte[(int) l];
+        copyRange(start, end, data, 0);
+        return data;
+    }
+
+    @Override
+    public void assign(long i, byte val) {
+        if ((i >= length) || (i < 0)) {
+            throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + length);
+        }
+        long pos = begin + i;
+        int idx = parts.indexOf(pos);
+        parts.refs[idx].assign(pos - parts.offsets[idx], val);
+    }
+
+    @Override
+    public void assign(long start, final byte[] newData) {
+        checkAssignBounds(start, newData.length);
+        forEachSegment(start, start + newData.length, (part, partStart, partEnd, pos) -> {
+            int l = (int) (partEnd - partStart);
+            if (l == newData.length) {
+                part.assign(partStart, newData);
+            } else {
+                part.assign(partStart, Arrays.copyOfRange(newData, (int) pos, (int) pos + l));
+            }
+        });
+    }
+
+    @Override
+    public void assign(long start, final DataRef newData) {
+        long l = newData.size();
+        checkAssignBounds(start, l);
+        if (l == 0) {
+            return;
+        }
+        forEachSegment(start, start + l, (part, partStart, partEnd, pos) -> {
+            if ((pos == 0) && (partEnd - partStart == l)) {
+                part.assign(partStart, newData);
+            } else {
+                part.assign(partStart, newData.dereference(pos, pos + (partEnd - partStart)));
+            }
+        });
+    }
+
+    @Override
+    public void copyTo(final DataRef target, final long offset) {
+        forEachSegment(0, length, (part, partStart, partEnd, pos) -> {
+            if ((partStart == 0) && (partEnd == part.size())) {
+                target.assign(offset + pos, part);
+            } else {
+                target.assign(offset + pos, part.dereference(partStart, partEnd));
+            }
+        });
+    }
+
+    @Override
+    public void copyTo(byte[] target, int offset) {
+        if (length > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("length doesn't fit into an integer: " + length);
+        }
+        if ((offset < 0) || (offset + length > target.length)) {
+            throw new IndexOutOfBoundsException("Asked for offset " + offset + " and length " + length + " but target length is only " + target.length);
+        }
+        copyRange(0, length, target, offset);
+    }
+
+    /**
+     * Gathers all components into the buffer.
+     *
+     * Whole components are copied directly by the component itself, so e.g.
+     * file backed components are read straight into the buffer.
+     *
+     * @param buffer target buffer
+     */
+    @Override
+    public void copyTo(final ByteBuf buffer) {
+        if (length > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("length doesn't fit into an integer: " + length);
+        }
+        if (buffer instanceof CompositeByteBuf) {
+            ((CompositeByteBuf) buffer).addComponent(true, toByteBuf());
+            return;
+        }
+        forEachSegment(0, length, (part, partStart, partEnd, pos) -> copySegment(part, partStart, partEnd, buffer));
+    }
+
+    @Override
+    public Iterable<DataRef> split(long numberOfChunks, int chunkSize) {
+        return new CDRIterator(chunkSize);
+    }
+
+    private void checkAssignBounds(long start, long l) {
+        if ((start > length) || (start < 0) || ((start == length) && (l > 0))) {
+            throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length);
+        }
+        if (start + l > length) {
+            throw new IndexOutOfBoundsException("Asked for length " + l + " but length is only " + length);
+        }
+    }
+
+    private void copyRange(long start, long end, final byte[] target, final int offset) {
+        forEachSegment(start, end, (part, partStart, partEnd, pos) -> {
+            if ((partStart == 0) && (partEnd == part.size())) {
+                part.copyTo(target, offset + (int) pos);
+            } else {
+                byte[] data = part.dereference(partStart, partEnd);
+                System.arraycopy(data, 0, target, offset + (int) pos, data.length);
+            }
+        });
+    }
+
+    private static void copySegment(DataRef part, long partStart, long partEnd, ByteBuf buffer) {
+        if ((partStart == 0) && (partEnd == part.size())) {
+            part.copyTo(buffer);
+        } else {
+            buffer.writeBytes(part.dereference(partStart, partEnd));
+        }
+    }
+
+    /**
+     * Calls the visitor once for every component overlapping the range
+     * [start, end) relative to this view.
+     */
+    private void forEachSegment(long start, long end, SegmentVisitor visitor) {
+        if (start >= end) {
+            return;
+        }
+        long pos = begin + start;
+        long last = begin + end;
+        int idx = parts.indexOf(pos);
+        while (pos < last) {
+            DataRef part = parts.refs[idx];
+            long partOffset = parts.offsets[idx];
+            long partEnd = Math.min(last, partOffset + part.size());
+            visitor.visit(part, pos - partOffset, partEnd - partOffset, pos - begin - start);
+            pos = partEnd;
+            idx++;
+        }
+    }
+
+    private static interface SegmentVisitor {
+
+        /**
+         * @param part the component
+         * @param partStart first position in the component
+         * @param partEnd first position after the segment in the component
+         * @param pos position relative to the start of the visited range
+         */
+        public void visit(DataRef part, long partStart, long partEnd, long pos);
+    }
+
+    private static final class Parts {
+
+        private final DataRef[] refs;
+        private final long[] offsets;
+        private final long size;
+        private final AtomicLong rc = new AtomicLong(1);
+
+        private Parts(List<? extends DataRef> components) {
+            List<DataRef> nonEmpty = new ArrayList<>(components.size());
+            for (DataRef ref : components) {
+                if (ref.size() == 0) {
+                    ref.release(); // we own it, but don't need it
+                } else {
+                    nonEmpty.add(ref);
+                }
+            }
+            this.refs = nonEmpty.toArray(new DataRef[nonEmpty.size()]);
+            this.offsets = new long[refs.length];
+            long offset = 0;
+            for (int i = 0; i < refs.length; i++) {
+                offsets[i] = offset;
+                offset += refs[i].size();
+            }
+            this.size = offset;
+        }
+
+        private int indexOf(long pos) {
+            int idx = Arrays.binarySearch(offsets, pos);
+            if (idx >= 0) {
+                return idx;
+            } else {
+                return -idx - 2; // the one before the insertion point
+            }
+        }
+
+        private void retain() {
+            rc.incrementAndGet();
+        }
+
+        private void release() {
+            long count = rc.decrementAndGet();
+            if (count == 0) {
+                for (DataRef ref : refs) {
+                    ref.release();
+                }
+            }
+            if (count < 0) {
+                throw new IllegalStateException("Object was already deallocated: " + this);
+            }
+        }
+    }
+
+    public class CDRIterator implements Iterator<DataRef>, Iterable<DataRef> {
+
+        public long pos = 0;
+        private final int chunkSize;
+
+        private CDRIterator(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return length > pos;
+        }
+
+        @Override
+        public DataRef next() {
+            int chunkLength = (int) Math.min((long) chunkSize, length - pos); // the smaller one must be int sized
+            CompositeDataRef subarea = new CompositeDataRef(parts, begin + pos, chunkLength);
+            pos += chunkLength;
+            return subarea;
+        }
+
+        @Override
+        public Iterator<DataRef> iterator() {
+            return this;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not yet implemented!");
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import io.netty.buffer.ByteBuf;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A read-only DataRef over data stored as independently deflated blocks.
+ *
+ * The storage layout (in any DataRef, typically a {@link RAFileRef}) is:
+ * <pre>
+ * [block 0]...[block n-1][offset 0]...[offset n][footer]
+ * footer = magic:int, blockSize:int, numBlocks:int, reserved:int, size:long, indexOffset:long
+ * </pre>
+ * where all numbers are big endian and block i occupies [offset i, offset i+1)
+ * in the storage. A block that didn't get smaller through compression is
+ * stored as is (which can be recognised by its stored length being equal to
+ * its uncompressed length).
+ *
+ * Reads only decompress the blocks they touch and the most recently
+ * decompressed blocks are kept in a small cache. {@link #split(long, int)}
+ * produces views that share the storage, index and cache.
+ *
+ * The ref takes over the caller's reference to the storage and releases it
+ * once its own reference count (shared with all views) drops to zero.
+ *
+ * @author lkroll
+ */
+public class CompressedDataRef implements DataRef {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final int DEFAULT_CACHED_BLOCKS = 8;
+    private static final int MAGIC = 0x43445231; // "CDR1"
+    private static final int FOOTER_SIZE = 32;
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater());
+
+    private final Blocks blocks;
+    private final long begin;
+    private final long length;
+
+    /**
+     * Compresses source into the block format with default settings.
+     *
+     * @param source the data to compress (the caller keeps its reference)
+     * @return a new ref over the compressed data (in memory or a temp file, depending on its size)
+     */
+    public static CompressedDataRef compress(DataRef source) {
+        return compress(source, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, new SpillingDataRef());
+    }
+
+    /**
+     * Compresses source into the block format.
+     *
+     * @param source the data to compress (the caller keeps its reference)
+     * @param blockSize uncompressed size of each block
+     * @param level the Deflater compression level
+     * @param target where to write the compressed data to
+     * @return a new ref over the compressed data
+     */
+    public static CompressedDataRef compress(DataRef source, int blockSize, int level, SpillingDataRef target) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        long size = source.size();
+        int numBlocks = (int) J6.roundUp(size, (long) blockSize);
+        long[] offsets = new long[numBlocks + 1];
+        Deflater deflater = new Deflater(level);
+        try {
+            byte[] compressed = new byte[blockSize];
+            long offset = 0;
+            for (int i = 0; i < numBlocks; i++) {
+                long start = ((long) i) * blockSize;
+                byte[] raw = source.dereference(start, Math.min(size, start + blockSize));
+                deflater.reset();
+                deflater.setInput(raw);
+                deflater.finish();
+                int n = 0;
+                while (!deflater.finished() && (n < raw.length)) {
+                    n += deflater.deflate(compressed, n, compressed.length - n);
+                }
+                offsets[i] = offset;
+                if (deflater.finished() && (n < raw.length)) {
+                    target.append(compressed, 0, n);
+                    offset += n;
+                } else {
+                    target.append(raw); // incompressible
+                    offset += raw.length;
+                }
+            }
+            offsets[numBlocks] = offset;
+            ByteBuffer tail = ByteBuffer.allocate(offsets.length * Long.BYTES + FOOTER_SIZE);
+            for (long o : offsets) {
+                tail.putLong(o);
+            }
+            tail.putInt(MAGIC).putInt(blockSize).putInt(numBlocks).putInt(0).putLong(size).putLong(offset);
+            target.append(tail.array());
+        } catch (RuntimeException ex) {
+            target.discard();
+            throw ex;
+        } finally {
+            deflater.end();
+        }
+        return new CompressedDataRef(target.build(), DEFAULT_CACHED_BLOCKS);
+    }
+
+    /**
+     * Opens previously compressed data.
+     *
+     * @param storage data in the block format (the caller's reference is taken over)
+     * @param cachedBlocks how many decompressed blocks to keep in memory
+     */
+    public CompressedDataRef(DataRef storage, int cachedBlocks) {
+        this.blocks = new Blocks(storage, cachedBlocks);
+        this.begin = 0;
+        this.length = blocks.size;
+    }
+
+    private CompressedDataRef(Blocks blocks, long begin, long length) {
+        this.blocks = blocks;
+        this.begin = begin;
+        this.length = length;
+        blocks.retain();
+    }
+
+    /**
+     * @return the size of the compressed storage, including the index
+     */
+    public long storedSize() {
+        return blocks.storage.size();
+    }
+
+    @Override
+    public void retain() {
+        blocks.retain();
+    }
+
+    @Override
+    public void release() {
+        blocks.release();
+    }
+
+    @Override
+    public long size() {
+        return length;
+    }
+
+    @Override
+    public byte[] dereference() {
+        if (length == 0) {
+            return new byte[0];
+        }
+        return dereference(0, length);
+    }
+
+    @Override
+    public byte dereference(long i) {
+        if ((i >= length) || (i < 0)) {
+            throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + length);
+        }
+        long pos = begin + i;
+        return blocks.block((int) (pos / blocks.blockSize))[(int) (pos % blocks.blockSize)];
+    }
+
+    @Override
+    public byte[] dereference(long start, long end) {
+        if ((start >= length) || (start < 0)) {
+            throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length);
+        }
+        if ((end > length) || (end < start)) {
+            throw new IndexOutOfBoundsException("Asked for end " + end + " but length is only " + length + " and start is" + start);
+        }
+        long l = end - start;
+        if (l > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("Range doesn't fit into an integer: " + l);
+        }
+        byte[] data = new byte[(int) l];
+        read(begin + start, data, 0, data.length);
+        return data;
+    }
+
+    @Override
+    public void assign(long i, byte val) {
+        throw new UnsupportedOperationException("CompressedDataRef is read-only!");
+    }
+
+    @Override
+    public void assign(long start, byte[] newData) {
+        throw new UnsupportedOperationException("CompressedDataRef is read-only!");
+    }
+
+    @Override
+    public void assign(long start, DataRef newData) {
+        throw new UnsupportedOperationException("CompressedDataRef is read-only!");
+    }
+
+    @Override
+    public void copyTo(DataRef target, long offset) {
+        // a block at a time, so we never materialise everything
+        long pos = 0;
+        while (pos < length) {
+            long abs = begin + pos;
+            byte[] block = blocks.block((int) (abs / blocks.blockSize));
+            int blockOffset = (int) (abs % blocks.blockSize);
+            int n = (int) Math.min((long) (block.length - blockOffset), length - pos);
+            if ((blockOffset == 0) && (n == block.length)) {
+                target.assign(offset + pos, block);
+            } else {
+                byte[] part = new byte[n];
+                System.arraycopy(block, blockOffset, part, 0, n);
+                target.assign(offset + pos, part);
+            }
+            pos += n;
+        }
+    }
+
+    @Override
+    public void copyTo(byte[] target, int offset) {
+        if (length > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("length doesn't fit into an integer: " + length);
+        }
+        read(begin, target, offset, (int) length);
+    }
+
+    @Override
+    public void copyTo(ByteBuf buffer) {
+        if (length > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("length doesn't fit into an integer: " + length);
+        }
+        long pos = 0;
+        while (pos < length) {
+            long abs = begin + pos;
+            byte[] block = blocks.block((int) (abs / blocks.blockSize));
+            int blockOffset = (int) (abs % blocks.blockSize);
+            int n = (int) Math.min((long) (block.length - blockOffset), length - pos);
+            buffer.writeBytes(block, blockOffset, n);
+            pos += n;
+        }
+    }
+
+    @Override
+    public Iterable<DataRef> split(long numberOfChunks, int chunkSize) {
+        return new CmpDRIterator(chunkSize);
+    }
+
+    private void read(long pos, byte[] target, int offset, int l) {
+        int done = 0;
+        while (done < l) {
+            long abs = pos + done;
+            byte[] block = blocks.block((int) (abs / blocks.blockSize));
+            int blockOffset = (int) (abs % blocks.blockSize);
+            int n = Math.min(block.length - blockOffset, l - done);
+            System.arraycopy(block, blockOffset, target, offset + done, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Shared state of the compressed data and all its views.
+     */
+    private static final class Blocks {
+
+        private final DataRef storage;
+        private final int blockSize;
+        private final long size;
+        private final long[] offsets;
+        private final LRUCache<Integer, byte[]> cache; // guarded by itself
+        private final AtomicLong rc = new AtomicLong(1);
+
+        private Blocks(DataRef storage, int cachedBlocks) {
+            this.storage = storage;
+            long storedSize = storage.size();
+            if (storedSize < FOOTER_SIZE) {
+                throw new IllegalArgumentException("Not in CompressedDataRef format: too short");
+            }
+            ByteBuffer footer = ByteBuffer.wrap(storage.dereference(storedSize - FOOTER_SIZE, storedSize));
+            if (footer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not in CompressedDataRef format: wrong magic number");
+            }
+            this.blockSize = footer.getInt();
+            int numBlocks = footer.getInt();
+            footer.getInt(); // reserved
+            this.size = footer.getLong();
+            long indexOffset = footer.getLong();
+            this.offsets = new long[numBlocks + 1];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = storage.getLong(indexOffset + ((long) i) * Long.BYTES, ByteOrder.BIG_ENDIAN);
+            }
+            this.cache = new LRUCache<>(Math.max(1, cachedBlocks));
+        }
+
+        private byte[] block(int index) {
+            synchronized (cache) {
+                byte[] block = cache.get(index);
+                if (block != null) {
+                    return block;
+                }
+            }
+            byte[] block = decompress(index);
+            synchronized (cache) {
+                cache.put(index, block);
+            }
+            return block;
+        }
+
+        private byte[] decompress(int index) {
+            long start = ((long) index) * blockSize;
+            int rawLength = (int) Math.min((long) blockSize, size - start);
+            byte[] stored = storage.dereference(offsets[index], offsets[index + 1]);
+            if (stored.length == rawLength) {
+                return stored; // was incompressible
+            }
+            Inflater inflater = INFLATER.get();
+            inflater.reset();
+            inflater.setInput(stored);
+            byte[] raw = new byte[rawLength];
+            try {
+                int n = 0;
+                while (n < rawLength) {
+                    int inflated = inflater.inflate(raw, n, rawLength - n);
+                    if ((inflated == 0) && (inflater.finished() || inflater.needsInput())) {
+                        throw new IllegalStateException("Block " + index + " is truncated: got " + n + " of " + rawLength + " bytes");
+                    }
+                    n += inflated;
+                }
+            } catch (DataFormatException ex) {
+                throw new RuntimeException("Block " + index + " is corrupt", ex);
+            }
+            return raw;
+        }
+
+        private void retain() {
+            rc.incrementAndGet();
+        }
+
+        private void release() {
+            long count = rc.decrementAndGet();
+            if (count == 0) {
+                synchronized (cache) {
+                    cache.clear();
+                }
+                storage.release();
+            }
+            if (count < 0) {
+                throw new IllegalStateException("Object was already deallocated: " + storage);
+            }
+        }
+    }
+
+    public class CmpDRIterator implements Iterator<DataRef>, Iterable<DataRef> {
+
+        public long pos = 0;
+        private final int chunkSize;
+
+        private CmpDRIterator(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return length > pos;
+        }
+
+        @Override
+        public DataRef next() {
+            int chunkLength = (int) Math.min((long) chunkSize, length - pos); // the smaller one must be int sized
+            CompressedDataRef subarea = new CompressedDataRef(blocks, begin + pos, chunkLength);
+            pos += chunkLength;
+            return subarea;
+        }
+
+        @Override
+        public Iterator<DataRef> iterator() {
+            return this;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not yet implemented!");
+        }
+    }
+}
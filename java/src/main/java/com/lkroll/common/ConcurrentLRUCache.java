@@ -0,0 +1,195 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import java.util.function.BiConsumer;
+
+/**
+ * A thread-safe LRU cache that stripes its entries over independently locked
+ * {@link LRUCache} segments.
+ *
+ * Each key is hashed to one segment, which holds an (almost) equal share of the
+ * capacity and evicts its own least recently used entry when full. Recency is
+ * thus only tracked per segment, which approximates global LRU order well as
+ * long as the keys are spread evenly. Threads accessing different segments
+ * never contend with each other.
+ *
+ * The {@link LRUCache.EvictionHandler} is invoked while the lock of the
+ * evicting segment is held, so it should be quick and must not access the
+ * cache.
+ *
+ * @author lkroll
+ * @param <K> Key
+ * @param <V> Value
+ */
+public class ConcurrentLRUCache<K, V> {
+
+    /**
+     * Segments smaller than this would track recency too coarsely.
+     */
+    public static final int MIN_SEGMENT_CAPACITY = 16;
+
+    private final LRUCache<K, V>[] segments;
+    private final int mask;
+    private final int cap;
+
+    /**
+     * @param capacity the total number of entries, shared out as evenly as possible among the segments
+     * @param concurrencyLevel the expected number of concurrently accessing threads, which
+     * determines the number of segments as long as each can hold {@link #MIN_SEGMENT_CAPACITY} entries
+     * @param evictionHandler called for every evicted entry, may be null
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ConcurrentLRUCache(int capacity, int concurrencyLevel, LRUCache.EvictionHandler<K, V> evictionHandler) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel must be positive: " + concurrencyLevel);
+        }
+        int n = 1;
+        while ((n < concurrencyLevel) && (((long) n) * 2 * MIN_SEGMENT_CAPACITY <= capacity)) {
+            n <<= 1;
+        }
+        this.segments = new LRUCache[n];
+        this.mask = n - 1;
+        this.cap = capacity;
+        int segmentCap = capacity / n;
+        int remainder = capacity % n;
+        for (int i = 0; i < n; i++) {
+            segments[i] = new LRUCache<>((i < remainder) ? segmentCap + 1 : segmentCap, evictionHandler);
+        }
+    }
+
+    public ConcurrentLRUCache(int capacity, LRUCache.EvictionHandler<K, V> evictionHandler) {
+        this(capacity, 4 * Runtime.getRuntime().availableProcessors(), evictionHandler);
+    }
+
+    public ConcurrentLRUCache(int capacity) {
+        this(capacity, null);
+    }
+
+    private LRUCache<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16); // the low bits pick the segment and LinkedHashMap uses them again inside
+        h *= 0x9E3779B1;
+        return segments[(h >>> 16) & mask];
+    }
+
+    /**
+     * Records hits and misses of {@link #get(Object)} and evictions of all segments into stats.
+     */
+    public ConcurrentLRUCache<K, V> recordStats(CacheStats stats) {
+        for (LRUCache<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.recordStats(stats);
+            }
+        }
+        return this;
+    }
+
+    public V get(K key) {
+        LRUCache<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    public boolean containsKey(K key) {
+        LRUCache<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.containsKey(key);
+        }
+    }
+
+    /**
+     * @return the previous value for key, or null
+     */
+    public V put(K key, V value) {
+        LRUCache<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.put(key, value);
+        }
+    }
+
+    /**
+     * @return the current value for key if there is one (in which case nothing
+     * was changed), or null
+     */
+    public V putIfAbsent(K key, V value) {
+        LRUCache<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.putIfAbsent(key, value);
+        }
+    }
+
+    public V remove(K key) {
+        LRUCache<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.remove(key);
+        }
+    }
+
+    /**
+     * Removes all entries without calling the eviction handler.
+     */
+    public void clear() {
+        for (LRUCache<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Calls f for every entry, a segment at a time.
+     *
+     * This doesn't change the recency of any entry. f is called while the
+     * segment's lock is held and must not access the cache.
+     */
+    public void forEach(BiConsumer<? super K, ? super V> f) {
+        for (LRUCache<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.forEach(f);
+            }
+        }
+    }
+
+    /**
+     * Sums up the segment sizes, which is not an atomic snapshot under
+     * concurrent modification.
+     */
+    public int size() {
+        int sum = 0;
+        for (LRUCache<K, V> segment : segments) {
+            synchronized (segment) {
+                sum += segment.size();
+            }
+        }
+        return sum;
+    }
+
+    public int capacity() {
+        return cap;
+    }
+
+    public int numberOfSegments() {
+        return segments.length;
+    }
+}
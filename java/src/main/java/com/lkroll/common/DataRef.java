@@ -19,6 +19,13 @@
 package com.lkroll.common;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.FileRegion;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 
 /**
  * This things is getting damn ObjC-y with all the memory management.
@@ -90,6 +97,144 @@ public interface DataRef {
      * @param newData data to write
      */
     public void assign(long start, DataRef newData);
+
+    /*
+     * Primitive accessors at absolute positions.
+     *
+     * The default implementations go through dereference/assign and thus
+     * allocate, implementations should override the short, int, and long
+     * variants where they can do better (float and double build on int and long).
+     */
+    
+    /**
+     * Reads the byte at position index.
+     *
+     * @param index position of the byte
+     * @return the value at index
+     */
+    public default byte getByte(long index) {
+        return dereference(index);
+    }
+
+    /**
+     * Reads the 2 bytes starting at index as a short.
+     *
+     * @param index position of the first byte
+     * @param order byte order of the stored value
+     * @return the value at index
+     */
+    public default short getShort(long index, ByteOrder order) {
+        return ByteBuffer.wrap(dereference(index, index + Short.BYTES)).order(order).getShort(0);
+    }
+
+    /**
+     * Reads the 4 bytes starting at index as an int.
+     *
+     * @param index position of the first byte
+     * @param order byte order of the stored value
+     * @return the value at index
+     */
+    public default int getInt(long index, ByteOrder order) {
+        return ByteBuffer.wrap(dereference(index, index + Integer.BYTES)).order(order).getInt(0);
+    }
+
+    /**
+     * Reads the 8 bytes starting at index as a long.
+     *
+     * @param index position of the first byte
+     * @param order byte order of the stored value
+     * @return the value at index
+     */
+    public default long getLong(long index, ByteOrder order) {
+        return ByteBuffer.wrap(dereference(index, index + Long.BYTES)).order(order).getLong(0);
+    }
+
+    /**
+     * Reads the 4 bytes starting at index as a float.
+     *
+     * @param index position of the first byte
+     * @param order byte order of the stored value
+     * @return the value at index
+     */
+    public default float getFloat(long index, ByteOrder order) {
+        return Float.intBitsToFloat(getInt(index, order));
+    }
+
+    /**
+     * Reads the 8 bytes starting at index as a double.
+     *
+     * @param index position of the first byte
+     * @param order byte order of the stored value
+     * @return the value at index
+     */
+    public default double getDouble(long index, ByteOrder order) {
+        return Double.longBitsToDouble(getLong(index, order));
+    }
+
+    /**
+     * Writes value to position index.
+     *
+     * @param index position to write to
+     * @param value the value to write
+     */
+    public default void putByte(long index, byte value) {
+        assign(index, value);
+    }
+
+    /**
+     * Writes value to the 2 bytes starting at index.
+     *
+     * @param index position of the first byte
+     * @param value the value to write
+     * @param order byte order to store the value in
+     */
+    public default void putShort(long index, short value, ByteOrder order) {
+        assign(index, ByteBuffer.allocate(Short.BYTES).order(order).putShort(0, value).array());
+    }
+
+    /**
+     * Writes value to the 4 bytes starting at index.
+     *
+     * @param index position of the first byte
+     * @param value the value to write
+     * @param order byte order to store the value in
+     */
+    public default void putInt(long index, int value, ByteOrder order) {
+        assign(index, ByteBuffer.allocate(Integer.BYTES).order(order).putInt(0, value).array());
+    }
+
+    /**
+     * Writes value to the 8 bytes starting at index.
+     *
+     * @param index position of the first byte
+     * @param value the value to write
+     * @param order byte order to store the value in
+     */
+    public default void putLong(long index, long value, ByteOrder order) {
+        assign(index, ByteBuffer.allocate(Long.BYTES).order(order).putLong(0, value).array());
+    }
+
+    /**
+     * Writes value to the 4 bytes starting at index.
+     *
+     * @param index position of the first byte
+     * @param value the value to write
+     * @param order byte order to store the value in
+     */
+    public default void putFloat(long index, float value, ByteOrder order) {
+        putInt(index, Float.floatToRawIntBits(value), order);
+    }
+
+    /**
+     * Writes value to the 8 bytes starting at index.
+     *
+     * @param index position of the first byte
+     * @param value the value to write
+     * @param order byte order to store the value in
+     */
+    public default void putDouble(long index, double value, ByteOrder order) {
+        putLong(index, Double.doubleToRawLongBits(value), order);
+    }
     
     /**
      * Copies the data referenced here into the target starting at offset
@@ -113,7 +258,82 @@ public interface DataRef {
      * @param buffer target buffer
      */
     public void copyTo(ByteBuf buffer);
+
+    /**
+     * Exposes the whole content as a Netty FileRegion, so it can be written to
+     * a socket without copying it through user space (i.e. with sendfile).
+     *
+     * The region retains this ref and releases it again when the region is
+     * deallocated, so the caller may release its own reference right after
+     * handing the region to Netty.
+     *
+     * Only file backed refs support this.
+     *
+     * @return a region over the referenced data
+     * @throws UnsupportedOperationException if the data is not backed by a file
+     */
+    public default FileRegion toFileRegion() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " is not backed by a file!");
+    }
     
+    /**
+     * Opens a read-only channel over the referenced data, starting at position 0.
+     *
+     * The channel retains this ref until it is closed.
+     * File backed refs are read in chunks of {@link DataRefChannel#DEFAULT_READ_AHEAD}.
+     *
+     * @return a new channel
+     */
+    public default SeekableByteChannel openReadChannel() {
+        return openReadChannel(DataRefChannel.DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * Opens a read-only channel over the referenced data, starting at position 0.
+     *
+     * The channel retains this ref until it is closed.
+     *
+     * @param readAhead how many bytes to read at once (0 to disable read-ahead)
+     * @return a new channel
+     */
+    public default SeekableByteChannel openReadChannel(int readAhead) {
+        return new DataRefChannel(this, false, readAhead);
+    }
+
+    /**
+     * Opens a read-write channel over the referenced data, starting at position 0.
+     *
+     * The channel retains this ref until it is closed.
+     * Writes past {@link #size()} fail, as a DataRef can't grow.
+     *
+     * @return a new channel
+     */
+    public default SeekableByteChannel openWriteChannel() {
+        return new DataRefChannel(this, true, DataRefChannel.DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * Streams the referenced data in constant memory.
+     *
+     * Closing the stream releases the reference held by the underlying channel.
+     *
+     * @return a new stream starting at position 0
+     */
+    public default InputStream openInputStream() {
+        return Channels.newInputStream(openReadChannel());
+    }
+
+    /**
+     * Overwrites the referenced data from position 0 onwards.
+     *
+     * Closing the stream releases the reference held by the underlying channel.
+     *
+     * @return a new stream starting at position 0
+     */
+    public default OutputStream openOutputStream() {
+        return Channels.newOutputStream(openWriteChannel());
+    }
+
     /**
      * Returns an Iterable over DataRefs pointing to numberOfChunks subareas of this DataRef such that each subarea is no larger than chunkSize
      * 
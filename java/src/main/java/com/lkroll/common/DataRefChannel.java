@@ -0,0 +1,251 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A SeekableByteChannel view of any DataRef.
+ *
+ * File backed refs ({@link RAFileRef}, {@link PartialFileRef}) are read with
+ * positional reads into a reusable read-ahead buffer (or straight into the
+ * caller's buffer, if that is at least as large), byte[] backed refs are
+ * copied from directly. Anything else is read in read-ahead sized
+ * chunks via {@link DataRef#dereference(long, long)}.
+ *
+ * Writes are never buffered. As DataRefs have a fixed size, the channel can't
+ * grow or be shrunk; truncating to (at least) the current size only clamps the
+ * position, as with any other channel.
+ *
+ * The channel retains the ref while it is open and releases it on close.
+ *
+ * @author lkroll
+ */
+public class DataRefChannel implements SeekableByteChannel {
+
+    public static final int DEFAULT_READ_AHEAD = 64 * 1024;
+
+    private final DataRef ref;
+    private final long size;
+    private final boolean writable;
+    private final int readAhead;
+    // file access, if file backed
+    private final FileChannel fileChannel;
+    private final long fileOffset;
+    // read-ahead buffer: holds [bufferStart, bufferStart + buffer.limit())
+    private ByteBuffer buffer = null;
+    private long bufferStart = 0;
+    private long position = 0;
+    private boolean open = true;
+
+    /**
+     * @param ref the data to read/write
+     * @param writable whether the channel may write to ref
+     * @param readAhead how many bytes to read at once (0 to disable)
+     */
+    public DataRefChannel(DataRef ref, boolean writable, int readAhead) {
+        if (readAhead < 0) {
+            throw new IllegalArgumentException("readAhead must not be negative: " + readAhead);
+        }
+        this.ref = ref;
+        this.size = ref.size();
+        this.writable = writable;
+        this.readAhead = readAhead;
+        if (ref instanceof RAFileRef) {
+            this.fileChannel = ((RAFileRef) ref).getChannel();
+            this.fileOffset = 0;
+        } else if (ref instanceof PartialFileRef) {
+            PartialFileRef pfr = (PartialFileRef) ref;
+            this.fileChannel = pfr.fileRef().getChannel();
+            this.fileOffset = pfr.begin();
+        } else {
+            this.fileChannel = null;
+            this.fileOffset = 0;
+        }
+        ref.retain();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int n = (int) Math.min((long) dst.remaining(), size - position);
+        if (n == 0) {
+            return 0;
+        }
+        if (buffered(position)) {
+            n = Math.min(n, (int) (bufferStart + buffer.limit() - position));
+            ByteBuffer src = buffer.duplicate();
+            src.position((int) (position - bufferStart));
+            src.limit(src.position() + n);
+            dst.put(src);
+        } else if (ref instanceof ByteArrayRef) {
+            ByteArrayRef bar = (ByteArrayRef) ref;
+            dst.put(bar.getBackingArray(), bar.begin + (int) position, n);
+        } else if ((n >= readAhead) && (fileChannel != null)) {
+            ByteBuffer target = dst.duplicate();
+            target.limit(target.position() + n);
+            n = fileChannel.read(target, fileOffset + position);
+            if (n < 0) {
+                return -1;
+            }
+            dst.position(dst.position() + n);
+        } else if (n >= readAhead) {
+            dst.put(ref.dereference(position, position + n));
+        } else {
+            fill(position);
+            if (!buffered(position)) {
+                return -1; // the underlying file is shorter than it claimed to be
+            }
+            return read(dst);
+        }
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+        int n = (int) Math.min((long) src.remaining(), size - position);
+        if ((n <= 0) && src.hasRemaining()) {
+            throw new IOException("Can't write beyond the end of the DataRef (size=" + size + ")");
+        }
+        if (n == 0) {
+            return 0;
+        }
+        invalidate();
+        if (ref instanceof ByteArrayRef) {
+            ByteArrayRef bar = (ByteArrayRef) ref;
+            src.get(bar.getBackingArray(), bar.begin + (int) position, n);
+            bar.invalidateHash();
+        } else if (fileChannel != null) {
+            ByteBuffer source = src.duplicate();
+            source.limit(source.position() + n);
+            n = fileChannel.write(source, fileOffset + position);
+            src.position(src.position() + n);
+        } else {
+            byte[] data = new byte[n];
+            src.get(data);
+            ref.assign(position, data);
+        }
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Position must not be negative: " + newPosition);
+        }
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size must not be negative: " + size);
+        }
+        ensureOpen();
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+        if (size < this.size) {
+            throw new UnsupportedOperationException("DataRefs have a fixed size!");
+        }
+        if (position > size) {
+            position = size;
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (open) {
+            open = false;
+            buffer = null;
+            ref.release();
+        }
+    }
+
+    private boolean buffered(long pos) {
+        return (buffer != null) && (pos >= bufferStart) && (pos < bufferStart + buffer.limit());
+    }
+
+    private void fill(long pos) throws IOException {
+        int n = (int) Math.min((long) readAhead, size - pos);
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(readAhead);
+        }
+        buffer.clear();
+        buffer.limit(n);
+        if (fileChannel != null) {
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, fileOffset + pos + buffer.position()) < 0) {
+                    break;
+                }
+            }
+        } else {
+            buffer.put(ref.dereference(pos, pos + n));
+        }
+        buffer.flip();
+        bufferStart = pos;
+    }
+
+    private void invalidate() {
+        if (buffer != null) {
+            buffer.clear();
+            buffer.limit(0);
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Streaming checksums and Merkle hashes over DataRefs.
+ *
+ * Data is read through {@link DataRef#openReadChannel()} into a small reused
+ * buffer, so hashing never materialises the whole DataRef. The chunked mode
+ * hashes every chunk of {@link DataRef#split(long, int)} in parallel and
+ * combines the results into a Merkle root, such that single chunks can be
+ * re-verified later on their own.
+ *
+ * @author lkroll
+ */
+public abstract class DataRefHashing {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    public static enum Algorithm {
+        CRC32C(Hashing.crc32c()),
+        MURMUR3_128(Hashing.murmur3_128()), // fast non-cryptographic (xxHash-like) 128bit hash
+        FARMHASH_64(Hashing.farmHashFingerprint64()),
+        SHA256(Hashing.sha256());
+
+        public final HashFunction function;
+
+        private Algorithm(HashFunction function) {
+            this.function = function;
+        }
+    }
+
+    /**
+     * Hashes the whole content of ref in constant memory.
+     *
+     * @param ref the data to hash
+     * @param algorithm the hash to compute
+     * @return the hash of ref's content
+     */
+    public static HashCode hash(DataRef ref, Algorithm algorithm) {
+        Hasher hasher = algorithm.function.newHasher();
+        putAll(ref, hasher);
+        return hasher.hash();
+    }
+
+    /**
+     * Computes a Merkle tree over ref's chunks of chunkSize bytes on the common ForkJoinPool.
+     *
+     * @param ref the data to hash
+     * @param algorithm the hash to use for leaves and inner nodes
+     * @param chunkSize size of each leaf chunk
+     * @return the Merkle tree
+     */
+    public static MerkleTree merkle(DataRef ref, Algorithm algorithm, int chunkSize) {
+        return merkle(ref, algorithm, chunkSize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Computes a Merkle tree over ref's chunks of chunkSize bytes, hashing the
+     * chunks in parallel on executor.
+     *
+     * @param ref the data to hash
+     * @param algorithm the hash to use for leaves and inner nodes
+     * @param chunkSize size of each leaf chunk
+     * @param executor where to hash the chunks
+     * @return the Merkle tree
+     */
+    public static MerkleTree merkle(DataRef ref, final Algorithm algorithm, int chunkSize, Executor executor) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        List<CompletableFuture<HashCode>> futures = new ArrayList<>();
+        for (final DataRef chunk : ref.split(J6.roundUp(ref.size(), (long) chunkSize), chunkSize)) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return leafHash(chunk, algorithm);
+                } finally {
+                    chunk.release();
+                }
+            }, executor));
+        }
+        List<HashCode> leaves = new ArrayList<>(futures.size());
+        try {
+            for (CompletableFuture<HashCode> f : futures) {
+                leaves.add(f.join());
+            }
+        } catch (CompletionException ex) {
+            throw new RuntimeException("Hashing failed", ex.getCause());
+        }
+        return new MerkleTree(algorithm, chunkSize, leaves);
+    }
+
+    private static HashCode leafHash(DataRef chunk, Algorithm algorithm) {
+        Hasher hasher = algorithm.function.newHasher();
+        hasher.putByte(LEAF_PREFIX);
+        putAll(chunk, hasher);
+        return hasher.hash();
+    }
+
+    private static HashCode nodeHash(HashCode left, HashCode right, Algorithm algorithm) {
+        return algorithm.function.newHasher()
+                .putByte(NODE_PREFIX)
+                .putBytes(left.asBytes())
+                .putBytes(right.asBytes())
+                .hash();
+    }
+
+    private static void putAll(DataRef ref, Hasher hasher) {
+        if (ref instanceof ByteArrayRef) {
+            ByteArrayRef bar = (ByteArrayRef) ref;
+            hasher.putBytes(bar.getBackingArray(), bar.begin, bar.length);
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min((long) BUFFER_SIZE, Math.max(ref.size(), 1L)));
+        try (SeekableByteChannel channel = ref.openReadChannel(0)) { // we buffer ourselves
+            while (channel.read(buf) >= 0) {
+                buf.flip();
+                hasher.putBytes(buf);
+                buf.clear();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * A Merkle tree with one leaf per chunk of the hashed data.
+     *
+     * Leaves are {@code H(0x00 || chunk)}, inner nodes are
+     * {@code H(0x01 || left || right)}, and an odd node at the end of a level
+     * is promoted to the next level unchanged.
+     */
+    public static class MerkleTree {
+
+        public final Algorithm algorithm;
+        public final int chunkSize;
+        private final List<HashCode> leaves;
+        private final HashCode root;
+
+        private MerkleTree(Algorithm algorithm, int chunkSize, List<HashCode> leaves) {
+            this.algorithm = algorithm;
+            this.chunkSize = chunkSize;
+            this.leaves = Collections.unmodifiableList(leaves);
+            this.root = computeRoot(leaves, algorithm);
+        }
+
+        public HashCode root() {
+            return root;
+        }
+
+        public List<HashCode> leaves() {
+            return leaves;
+        }
+
+        public int numberOfChunks() {
+            return leaves.size();
+        }
+
+        /**
+         * Checks a single chunk (e.g. a re-sent one) against the tree.
+         *
+         * @param index the index of the chunk in the split of the original data
+         * @param chunk the chunk's data
+         * @return true if chunk hashes to the recorded leaf
+         */
+        public boolean verifyChunk(int index, DataRef chunk) {
+            return leaves.get(index).equals(leafHash(chunk, algorithm));
+        }
+
+        private static HashCode computeRoot(List<HashCode> leaves, Algorithm algorithm) {
+            if (leaves.isEmpty()) {
+                return algorithm.function.newHasher().putByte(LEAF_PREFIX).hash();
+            }
+            List<HashCode> level = leaves;
+            while (level.size() > 1) {
+                List<HashCode> next = new ArrayList<>((level.size() + 1) / 2);
+                for (int i = 0; i < level.size(); i += 2) {
+                    if (i + 1 < level.size()) {
+                        next.add(nodeHash(level.get(i), level.get(i + 1), algorithm));
+                    } else {
+                        next.add(level.get(i));
+                    }
+                }
+                level = next;
+            }
+            return level.get(0);
+        }
+
+        @Override
+        public String toString() {
+            return "MerkleTree(" + algorithm + ", chunks=" + leaves.size() + "x" + chunkSize + ", root=" + root + ")";
+        }
+    }
+}
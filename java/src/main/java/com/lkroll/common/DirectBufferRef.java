@@ -0,0 +1,235 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.Iterator;
+
+/**
+ * A DataRef where the underlying storage is an (ideally pooled, direct) Netty ByteBuf.
+ *
+ * Unlike {@link ByteArrayRef}, retain/release are real here: once the
+ * reference count drops to zero the memory is returned to the allocator's
+ * pool. {@link #split(long, int)} produces retained slices of the same memory,
+ * which must be released individually.
+ *
+ * @author lkroll
+ */
+public class DirectBufferRef implements DataRef {
+
+    private final ByteBuf buffer;
+    private final int length;
+
+    /**
+     * Allocates a new ref of the given size from the default pooled allocator.
+     *
+     * The content is not initialised.
+     *
+     * @param size number of bytes
+     * @return a new ref with a reference count of 1
+     */
+    public static DirectBufferRef allocate(int size) {
+        return allocate(PooledByteBufAllocator.DEFAULT, size);
+    }
+
+    /**
+     * Allocates a new ref of the given size from the provided allocator.
+     *
+     * The content is not initialised.
+     *
+     * @param allocator where to take the memory from
+     * @param size number of bytes
+     * @return a new ref with a reference count of 1
+     */
+    public static DirectBufferRef allocate(ByteBufAllocator allocator, int size) {
+        ByteBuf buf = allocator.directBuffer(size, size);
+        return new DirectBufferRef(buf, size);
+    }
+
+    /**
+     * Produce a new ref over the readable bytes of the provided buffer.
+     *
+     * Takes over the caller's reference to the buffer, i.e. releasing the ref
+     * releases the buffer.
+     *
+     * @param buffer the underlying data for the new ref
+     * @return A new ref with the given data
+     */
+    public static DirectBufferRef wrap(ByteBuf buffer) {
+        ByteBuf slice = buffer.slice();
+        return new DirectBufferRef(slice, slice.capacity());
+    }
+
+    private DirectBufferRef(ByteBuf buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    /**
+     * Returns a retained slice over exactly the referenced bytes (no copy).
+     *
+     * The caller is responsible for releasing it.
+     *
+     * @return a readable buffer over the data
+     */
+    public ByteBuf retainedSlice() {
+        return buffer.retainedSlice(0, length);
+    }
+
+    @Override
+    public void retain() {
+        buffer.retain();
+    }
+
+    @Override
+    public void release() {
+        buffer.release();
+    }
+
+    public int rc() { // for debugging only!
+        return buffer.refCnt();
+    }
+
+    @Override
+    public long size() {
+        return length;
+    }
+
+    @Override
+    public byte[] dereference() {
+        if (length == 0) {
+            return new byte[0];
+        }
+        return dereference(0, length);
+    }
+
+    @Override
+    public byte dereference(long i) {
+        if ((i >= length) || (i < 0)) {
+            throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + length);
+        }
+        return buffer.getByte((int) i);
+    }
+
+    @Override
+    public byte[] dereference(long start, long end) {
+        if ((start >= length) || (start < 0)) {
+            throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length);
+        }
+        if ((end > length) || (end < start)) {
+            throw new IndexOutOfBoundsException("Asked for end " + end + " but length is only " + length + " and start is" + start);
+        }
+        byte[] data = new byte[(int) (end - start)];
+        buffer.getBytes((int) start, data);
+        return data;
+    }
+
+    @Override
+    public void assign(long i, byte val) {
+        if ((i >= length) || (i < 0)) {
+            throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + length);
+        }
+        buffer.setByte((int) i, val);
+    }
+
+    @Override
+    public void assign(long start, byte[] newData) {
+        checkAssignBounds(start, newData.length);
+        buffer.setBytes((int) start, newData);
+    }
+
+    @Override
+    public void assign(long start, DataRef newData) {
+        long l = newData.size();
+        checkAssignBounds(start, l);
+        if (newData instanceof DirectBufferRef) {
+            DirectBufferRef src = (DirectBufferRef) newData;
+            buffer.setBytes((int) start, src.buffer, 0, src.length);
+        } else {
+            // let the source write straight into our memory
+            ByteBuf target = buffer.slice((int) start, (int) l);
+            target.clear();
+            newData.copyTo(target);
+        }
+    }
+
+    @Override
+    public void copyTo(DataRef target, long offset) {
+        target.assign(offset, this);
+    }
+
+    @Override
+    public void copyTo(byte[] target, int offset) {
+        buffer.getBytes(0, target, offset, length);
+    }
+
+    @Override
+    public void copyTo(ByteBuf target) {
+        target.writeBytes(buffer, 0, length);
+    }
+
+    @Override
+    public Iterable<DataRef> split(long numberOfChunks, int chunkSize) {
+        return new DBRIterator(chunkSize);
+    }
+
+    private void checkAssignBounds(long start, long l) {
+        if ((start > length) || (start < 0) || ((start == length) && (l > 0))) {
+            throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length);
+        }
+        if (start + l > length) {
+            throw new IndexOutOfBoundsException("Asked for length " + l + " but length is only " + length);
+        }
+    }
+
+    public class DBRIterator implements Iterator<DataRef>, Iterable<DataRef> {
+
+        public int pos = 0;
+        private final int chunkSize;
+
+        private DBRIterator(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return length > pos;
+        }
+
+        @Override
+        public DataRef next() {
+            int chunkLength = Math.min(chunkSize, length - pos);
+            DirectBufferRef subarea = new DirectBufferRef(buffer.retainedSlice(pos, chunkLength), chunkLength);
+            pos += chunkLength;
+            return subarea;
+        }
+
+        @Override
+        public Iterator<DataRef> iterator() {
+            return this;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not yet implemented!");
+        }
+    }
+}
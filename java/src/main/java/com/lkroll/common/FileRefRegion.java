@@ -0,0 +1,52 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import io.netty.channel.DefaultFileRegion;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link DefaultFileRegion} over the channel of a file backed {@link DataRef}.
+ *
+ * Netty can write this with {@code sendfile} without copying the data through
+ * user space. The region holds its own reference to the DataRef, which is
+ * released once the region itself is deallocated (i.e. after Netty wrote it).
+ * Unlike a plain DefaultFileRegion, this does not close the shared channel.
+ *
+ * @author lkroll
+ */
+public class FileRefRegion extends DefaultFileRegion {
+
+    private final DataRef owner;
+
+    FileRefRegion(DataRef owner, FileChannel channel, long position, long count) {
+        super(channel, position, count);
+        this.owner = owner;
+        owner.retain();
+    }
+
+    public DataRef owner() {
+        return owner;
+    }
+
+    @Override
+    protected void deallocate() {
+        owner.release();
+    }
+}
@@ -0,0 +1,126 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+/**
+ * A count-min sketch of access frequencies with 4-bit counters that are
+ * periodically halved, so that the estimates follow changes in popularity.
+ *
+ * Each long in the table packs 16 counters, four for each of the four hash
+ * functions. The table has (at least) as many longs as the number of keys
+ * whose frequency should be distinguishable.
+ *
+ * Not thread-safe.
+ *
+ * @author lkroll
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+    /**
+     * The largest power of two an int can hold.
+     */
+    public static final int MAX_TABLE_SIZE = 1 << 30;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param maximumSize the number of distinct keys to track
+     */
+    public FrequencySketch(int maximumSize) {
+        int n = tableSizeFor(maximumSize);
+        this.table = new long[n];
+        this.tableMask = n - 1;
+        this.sampleSize = (int) Math.min(10L * n, (long) Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maximumSize the number of distinct keys to track
+     * @return the number of longs in the table, the smallest power of two
+     * (at least 8) not below maximumSize, capped at {@link #MAX_TABLE_SIZE}
+     */
+    public static int tableSizeFor(int maximumSize) {
+        int max = Math.min(maximumSize, MAX_TABLE_SIZE);
+        int n = 8;
+        while (n < max) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    /**
+     * @return the estimated number of recent occurrences of e, between 0 and 15
+     */
+    public int frequency(Object e) {
+        int hash = spread(e.hashCode());
+        int min = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            min = Math.min(min, (int) ((table[indexOf(hash, i)] >>> shiftOf(hash, i)) & 0xfL));
+        }
+        return min;
+    }
+
+    /**
+     * Records an occurrence of e, halving all counters once the sample is full.
+     */
+    public void increment(Object e) {
+        int hash = spread(e.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int shift = shiftOf(hash, i);
+            if (((table[index] >>> shift) & 0xfL) < MAX_COUNT) {
+                table[index] += (1L << shift);
+                added = true;
+            }
+        }
+        if (added && (++additions == sampleSize)) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += (h >>> 32);
+        return ((int) h) & tableMask;
+    }
+
+    private static int shiftOf(int hash, int i) {
+        // counters [4i, 4i + 4) belong to hash function i
+        return (((hash >>> (i << 3)) & 3) + (i << 2)) << 2;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
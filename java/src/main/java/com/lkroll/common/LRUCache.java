@@ -18,8 +18,16 @@
 */
 package com.lkroll.common;
 
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 /**
  * Standard LRU cache with fixed capacity.
@@ -27,6 +35,24 @@ import java.util.Map;
  * You can implement an {@link EvictionHandler} if you need custom cleanup code
  * when an item is evicted from the cache.
  * 
+ * The capacity is either a number of entries or, in weighted mode, a maximum
+ * total weight of all entries as measured by a {@link Weigher}. In weighted
+ * mode as many of the least recently used entries as necessary are evicted
+ * after an insertion to get back below the maximum weight, including the new
+ * entry itself if it is heavier than the whole cache.
+ * 
+ * Entries can additionally expire after a time, as configured by an
+ * {@link Expiry} (e.g. {@link #expireAfterWrite(long, TimeUnit)}) or per entry
+ * with {@link #put(Object, Object, long, TimeUnit)}. Deadlines are kept in a
+ * {@link TimerWheel}, which is advanced on get, containsKey and put (or
+ * explicitly with {@link #cleanUp()}), and expired entries are passed to the
+ * {@link EvictionHandler} with {@link EvictionCause#EXPIRED}.
+ * 
+ * The weight and deadlines are maintained by get, containsKey, put, putAll,
+ * putIfAbsent, replace, remove and clear. The compute and merge methods are
+ * not supported in weighted or expiring mode and entries must not be removed
+ * through the collection views.
+ * 
  * @author lkroll
  * @param <K> Key
  * @param <V> Value
@@ -35,28 +61,532 @@ public class LRUCache<K, V> extends LinkedHashMap<K, V> {
 
     private final int cap;
     private final EvictionHandler<K, V> evicH;
+    private final Weigher<K, V> weigher;
+    private final long maxWeight;
+    private long weight = 0;
+    private Expiry<K, V> expiry = null;
+    private LongSupplier ticker = System::nanoTime;
+    private long origin = 0;
+    private TimerWheel<K> wheel = null;
+    private HashMap<K, TimerWheel.Timer<K>> timers = null;
+    private CacheStats stats = null;
 
     public LRUCache(int capacity, EvictionHandler<K, V> evictionHandler) {
+        super(16, 0.75f, true); // access order, otherwise this is just a FIFO
         this.cap = capacity;
         this.evicH = evictionHandler;
+        this.weigher = null;
+        this.maxWeight = -1;
     }
     
     public LRUCache(int capacity) {
         this(capacity, null);
     }
 
+    /**
+     * Creates a cache in weighted mode.
+     * 
+     * @param maxWeight the maximum total weight of all entries
+     * @param weigher must return the same weight for an entry for as long as it's in the cache
+     * @param evictionHandler called for every evicted entry, may be null
+     */
+    public LRUCache(long maxWeight, Weigher<K, V> weigher, EvictionHandler<K, V> evictionHandler) {
+        super(16, 0.75f, true);
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("maxWeight must not be negative: " + maxWeight);
+        }
+        this.cap = Integer.MAX_VALUE;
+        this.evicH = evictionHandler;
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Creates a cache of DataRefs that holds at most maxBytes worth of
+     * {@link DataRef#size()} and releases evicted refs.
+     */
+    public static <K, V extends DataRef> LRUCache<K, V> ofDataRefs(long maxBytes) {
+        return new LRUCache<>(maxBytes, dataRefWeigher(), releasingHandler());
+    }
+
+    public static <K, V extends DataRef> Weigher<K, V> dataRefWeigher() {
+        return (key, value) -> value.size();
+    }
+
+    /**
+     * An eviction handler that releases the cache's reference to evicted
+     * values.
+     * 
+     * Values that are removed explicitly are not released, instead ownership
+     * of the reference passes to the caller of remove.
+     */
+    public static <K, V extends DataRef> EvictionHandler<K, V> releasingHandler() {
+        return entry -> entry.getValue().release();
+    }
+
+    /**
+     * Makes entries expire the given duration after they were created or last updated.
+     * 
+     * Must be called before any entries are added.
+     */
+    public LRUCache<K, V> expireAfterWrite(long duration, TimeUnit unit) {
+        return expireAfter(Expiry.afterWrite(duration, unit));
+    }
+
+    /**
+     * Makes entries expire the given duration after they were last read or written.
+     * 
+     * Must be called before any entries are added.
+     */
+    public LRUCache<K, V> expireAfterAccess(long duration, TimeUnit unit) {
+        return expireAfter(Expiry.afterAccess(duration, unit));
+    }
+
+    /**
+     * Makes entries expire as decided by expiry.
+     * 
+     * Must be called before any entries are added.
+     */
+    public LRUCache<K, V> expireAfter(Expiry<K, V> expiry) {
+        checkEmpty();
+        this.expiry = expiry;
+        initTimers();
+        return this;
+    }
+
+    /**
+     * Replaces {@link System#nanoTime()} as the source of time for expiry.
+     * 
+     * Must be called before any entries are added.
+     */
+    public LRUCache<K, V> withTicker(LongSupplier ticker) {
+        checkEmpty();
+        this.ticker = ticker;
+        if (isExpiring()) {
+            initTimers();
+        }
+        return this;
+    }
+
+    private void checkEmpty() {
+        if (!isEmpty()) {
+            throw new IllegalStateException("Can only be configured while the cache is empty!");
+        }
+    }
+
+    private void initTimers() {
+        this.origin = ticker.getAsLong();
+        this.wheel = new TimerWheel<>(0);
+        this.timers = new HashMap<>();
+    }
+
+    /**
+     * Records hits and misses of {@link #get(Object)} and evictions into stats.
+     */
+    public LRUCache<K, V> recordStats(CacheStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    /**
+     * @return the stats given to {@link #recordStats(CacheStats)}, or null
+     */
+    public CacheStats stats() {
+        return stats;
+    }
+
+    public boolean isExpiring() {
+        return timers != null;
+    }
+
+    public boolean isWeighted() {
+        return weigher != null;
+    }
+
+    /**
+     * @return the current total weight in weighted mode, or the number of entries otherwise
+     */
+    public long weight() {
+        return isWeighted() ? weight : size();
+    }
+
+    /**
+     * @return the maximum total weight in weighted mode, or the maximum number of entries otherwise
+     */
+    public long maxWeight() {
+        return isWeighted() ? maxWeight : cap;
+    }
+
     @Override
     protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
         if (size() > cap) {
-            if (evicH != null) {
-                evicH.evicted(eldest);
+            descheduleExpiry(eldest.getKey());
+            notifyEvicted(eldest, EvictionCause.SIZE);
+            return true;
+        }
+        return false;
+    }
+
+    private long weigh(K key, V value) {
+        long w = weigher.weigh(key, value);
+        if (w < 0) {
+            throw new IllegalArgumentException("Negative weight " + w + " for key " + key);
+        }
+        return w;
+    }
+
+    private void evictOverweight() {
+        Iterator<Map.Entry<K, V>> it = super.entrySet().iterator();
+        while ((weight > maxWeight) && it.hasNext()) {
+            Map.Entry<K, V> eldest = it.next();
+            weight -= weigh(eldest.getKey(), eldest.getValue()); // before the handler might release it
+            descheduleExpiry(eldest.getKey());
+            notifyEvicted(eldest, EvictionCause.SIZE);
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes all expired entries.
+     */
+    public void cleanUp() {
+        if (isExpiring()) {
+            wheel.advance(now(), this::expireEntry);
+        }
+    }
+
+    private long now() {
+        return ticker.getAsLong() - origin;
+    }
+
+    private long advance() {
+        long now = now();
+        wheel.advance(now, this::expireEntry);
+        return now;
+    }
+
+    private void expireEntry(K key) {
+        timers.remove(key);
+        V value = super.remove(key);
+        if (isWeighted()) {
+            weight -= weigh(key, value);
+        }
+        notifyEvicted(new AbstractMap.SimpleImmutableEntry<>(key, value), EvictionCause.EXPIRED);
+    }
+
+    private void notifyEvicted(Map.Entry<K, V> entry, EvictionCause cause) {
+        if (stats != null) {
+            stats.recordEviction(cause);
+        }
+        if (evicH != null) {
+            evicH.evicted(entry, cause);
+        }
+    }
+
+    private long remaining(K key, long now) {
+        TimerWheel.Timer<K> timer = timers.get(key);
+        return (timer == null) ? Long.MAX_VALUE : (timer.deadline() - now);
+    }
+
+    private void scheduleExpiry(K key, long now, long duration) {
+        TimerWheel.Timer<K> timer = timers.get(key);
+        if (duration == Long.MAX_VALUE) {
+            if (timer != null) {
+                wheel.deschedule(timer);
+                timers.remove(key);
+            }
+            return;
+        }
+        long d = Math.max(0L, duration);
+        long deadline = (d > Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + d;
+        if (timer == null) {
+            timers.put(key, wheel.schedule(key, deadline));
+        } else if (timer.deadline() != deadline) {
+            wheel.reschedule(timer, deadline);
+        }
+    }
+
+    private void descheduleExpiry(Object key) {
+        if (isExpiring()) {
+            TimerWheel.Timer<K> timer = timers.remove(key);
+            if (timer != null) {
+                wheel.deschedule(timer);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (!isExpiring()) {
+            V value = super.get(key);
+            if (stats != null) {
+                recordGet(value);
             }
+            return value;
+        }
+        long now = advance();
+        V value = super.get(key);
+        if ((value != null) && (expiry != null)) {
+            long remaining = remaining((K) key, now);
+            scheduleExpiry((K) key, now, expiry.expireAfterRead((K) key, value, remaining));
+        }
+        if (stats != null) {
+            recordGet(value);
+        }
+        return value;
+    }
+
+    private void recordGet(V value) {
+        if (value != null) {
+            stats.recordHit();
+        } else {
+            stats.recordMiss();
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (isExpiring()) {
+            advance();
+        }
+        return super.containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (!isExpiring()) {
+            return putInternal(key, value);
+        }
+        long now = advance();
+        long duration;
+        if (super.containsKey(key)) {
+            long remaining = remaining(key, now);
+            duration = (expiry == null) ? remaining : expiry.expireAfterUpdate(key, value, remaining);
+        } else {
+            duration = (expiry == null) ? Long.MAX_VALUE : expiry.expireAfterCreate(key, value);
+        }
+        scheduleExpiry(key, now, duration);
+        return putInternal(key, value);
+    }
+
+    /**
+     * Puts an entry that expires after ttl, regardless of the configured
+     * {@link Expiry} (which still applies to later reads and updates).
+     * 
+     * @return the previous value for key, or null
+     */
+    public V put(K key, V value, long ttl, TimeUnit unit) {
+        if (!isExpiring()) {
+            initTimers();
+        }
+        long now = advance();
+        scheduleExpiry(key, now, unit.toNanos(ttl));
+        return putInternal(key, value);
+    }
+
+    private V putInternal(K key, V value) {
+        if (!isWeighted()) {
+            return super.put(key, value);
+        }
+        long w = weigh(key, value);
+        V old = super.put(key, value);
+        weight += w;
+        if (old != null) {
+            weight -= weigh(key, old);
+        }
+        evictOverweight();
+        return old;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (isSimple()) {
+            super.putAll(m);
+            return;
+        }
+        for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        if (isSimple()) {
+            return super.putIfAbsent(key, value);
+        }
+        if (isExpiring()) {
+            advance();
+        }
+        V cur = super.get(key);
+        if (cur == null) {
+            put(key, value);
+        }
+        return cur;
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        if (isSimple()) {
+            return super.replace(key, value);
+        }
+        if (containsKey(key)) {
+            return put(key, value);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (isSimple()) {
+            return super.replace(key, oldValue, newValue);
+        }
+        if (containsKey(key) && Objects.equals(super.get(key), oldValue)) {
+            put(key, newValue);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        descheduleExpiry(key);
+        if (!isWeighted()) {
+            return super.remove(key);
+        }
+        boolean present = containsKey(key);
+        V old = super.remove(key);
+        if (present) {
+            weight -= weigh((K) key, old);
+        }
+        return old;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (isSimple()) {
+            return super.remove(key, value);
+        }
+        if (containsKey(key) && Objects.equals(super.get(key), value)) {
+            remove(key);
             return true;
         }
         return false;
     }
+
+    @Override
+    public void clear() {
+        super.clear();
+        weight = 0;
+        if (isExpiring()) {
+            timers.clear();
+            wheel.clear();
+        }
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        checkSimple();
+        return super.computeIfAbsent(key, mappingFunction);
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        checkSimple();
+        return super.computeIfPresent(key, remappingFunction);
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        checkSimple();
+        return super.compute(key, remappingFunction);
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        checkSimple();
+        return super.merge(key, value, remappingFunction);
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        checkSimple();
+        super.replaceAll(function);
+    }
+
+    private boolean isSimple() {
+        return !isWeighted() && !isExpiring();
+    }
+
+    private void checkSimple() {
+        if (!isSimple()) {
+            throw new UnsupportedOperationException("Not supported in weighted or expiring mode!");
+        }
+    }
     
     public static interface EvictionHandler<K, V> {
         public void evicted(Map.Entry<K, V> entry);
+
+        /**
+         * Called instead of {@link #evicted(Map.Entry)} by caches that know
+         * why the entry was evicted.
+         */
+        public default void evicted(Map.Entry<K, V> entry, EvictionCause cause) {
+            evicted(entry);
+        }
+    }
+
+    public static enum EvictionCause {
+        /**
+         * Evicted to make room for other entries.
+         */
+        SIZE,
+        /**
+         * Evicted because its time was up.
+         */
+        EXPIRED;
+    }
+
+    /**
+     * Decides how long entries live, in nanoseconds.
+     * 
+     * Returning Long.MAX_VALUE means the entry never expires.
+     */
+    public static interface Expiry<K, V> {
+
+        public long expireAfterCreate(K key, V value);
+
+        public default long expireAfterUpdate(K key, V value, long remaining) {
+            return expireAfterCreate(key, value);
+        }
+
+        public default long expireAfterRead(K key, V value, long remaining) {
+            return remaining;
+        }
+
+        public static <K, V> Expiry<K, V> afterWrite(long duration, TimeUnit unit) {
+            final long nanos = unit.toNanos(duration);
+            return (key, value) -> nanos;
+        }
+
+        public static <K, V> Expiry<K, V> afterAccess(long duration, TimeUnit unit) {
+            final long nanos = unit.toNanos(duration);
+            return new Expiry<K, V>() {
+                @Override
+                public long expireAfterCreate(K key, V value) {
+                    return nanos;
+                }
+
+                @Override
+                public long expireAfterRead(K key, V value, long remaining) {
+                    return nanos;
+                }
+            };
+        }
+    }
+
+    public static interface Weigher<K, V> {
+        public long weigh(K key, V value);
     }
 }
@@ -0,0 +1,237 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reports reference counted objects (e.g. {@link RAFileRef}) that were
+ * garbage collected without being released, in the spirit of Netty's
+ * ResourceLeakDetector.
+ *
+ * Detection is configured globally with the system properties
+ * {@code com.lkroll.common.leakDetection.level} (one of {@link Detection},
+ * DISABLED by default) and {@code com.lkroll.common.leakDetection.samplingInterval}
+ * (128 by default), or at runtime via {@link #setLevel(Detection)}.
+ *
+ * <ul>
+ * <li>DISABLED: nothing is tracked, the overhead is a single volatile read per allocation.</li>
+ * <li>SIMPLE: one in samplingInterval objects is tracked with its allocation stack trace.</li>
+ * <li>ADVANCED: like SIMPLE, but the last accesses (retain/release) are recorded as well.</li>
+ * <li>PARANOID: like ADVANCED, but every object is tracked.</li>
+ * </ul>
+ *
+ * Leaks are detected whenever a new object is tracked (or on {@link #checkForLeaks()})
+ * and reported to the {@link LeakListener}, which logs them by default.
+ *
+ * @author lkroll
+ */
+public abstract class LeakDetector {
+
+    public static enum Detection {
+        DISABLED,
+        SIMPLE,
+        ADVANCED,
+        PARANOID;
+    }
+
+    public static final String LEVEL_PROPERTY = "com.lkroll.common.leakDetection.level";
+    public static final String SAMPLING_INTERVAL_PROPERTY = "com.lkroll.common.leakDetection.samplingInterval";
+    private static final int MAX_RECORDS = 4;
+    private static final Logger LOG = Logger.getLogger(LeakDetector.class.getName());
+
+    private static volatile Detection level = parseLevel(System.getProperty(LEVEL_PROPERTY));
+    private static volatile int samplingInterval = Integer.getInteger(SAMPLING_INTERVAL_PROPERTY, 128);
+    private static volatile LeakListener listener = new LoggingListener();
+
+    private static final Set<Tracker> LIVE = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+
+    public static Detection getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Detection newLevel) {
+        level = newLevel;
+    }
+
+    public static void setSamplingInterval(int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive: " + interval);
+        }
+        samplingInterval = interval;
+    }
+
+    public static void setListener(LeakListener newListener) {
+        listener = newListener;
+    }
+
+    /**
+     * Starts tracking obj, if the current level and sampling say so.
+     *
+     * The caller must {@link Tracker#close()} the tracker when obj is
+     * deallocated properly and should {@link Tracker#record()} accesses.
+     *
+     * @param obj the object to watch (only weakly referenced)
+     * @param description what to call obj in a leak report (don't reference obj here)
+     * @return the tracker or null if obj is not tracked
+     */
+    public static Tracker track(Object obj, String description) {
+        return track(obj, description, null);
+    }
+
+    /**
+     * Like {@link #track(Object, String)}, but only builds the description
+     * {@code type(resource)} if obj is actually tracked, so untracked
+     * allocations don't pay for the string.
+     *
+     * @param obj the object to watch (only weakly referenced)
+     * @param type what kind of object obj is
+     * @param resource what obj holds on to, e.g. its file (don't reference obj here), may be null
+     * @return the tracker or null if obj is not tracked
+     */
+    public static Tracker track(Object obj, String type, Object resource) {
+        Detection l = level;
+        if (l == Detection.DISABLED) {
+            return null;
+        }
+        if ((l != Detection.PARANOID) && (ThreadLocalRandom.current().nextInt(samplingInterval) != 0)) {
+            return null;
+        }
+        checkForLeaks();
+        String description = (resource == null) ? type : type + "(" + resource + ")";
+        Tracker tracker = new Tracker(obj, description, l != Detection.SIMPLE);
+        LIVE.add(tracker);
+        return tracker;
+    }
+
+    /**
+     * Reports all tracked objects that have been garbage collected without
+     * being closed so far.
+     *
+     * @return the number of leaks found
+     */
+    public static int checkForLeaks() {
+        int leaks = 0;
+        Tracker tracker;
+        while ((tracker = (Tracker) QUEUE.poll()) != null) {
+            if (LIVE.remove(tracker)) {
+                leaks++;
+                listener.leaked(tracker.description, tracker.records());
+            }
+        }
+        return leaks;
+    }
+
+    public static interface LeakListener {
+
+        /**
+         * @param description of the leaked object
+         * @param records allocation (first) and last access stack traces, if recorded
+         */
+        public void leaked(String description, List<Throwable> records);
+    }
+
+    private static class LoggingListener implements LeakListener {
+
+        @Override
+        public void leaked(String description, List<Throwable> records) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("LEAK: ").append(description).append(" was garbage collected before its last release().");
+            if (level == Detection.SIMPLE) {
+                sb.append(" Set ").append(LEVEL_PROPERTY).append("=ADVANCED to see where it was last accessed.");
+            }
+            Throwable first = records.isEmpty() ? null : records.get(0);
+            LOG.log(Level.SEVERE, sb.toString(), first);
+            for (int i = 1; i < records.size(); i++) {
+                LOG.log(Level.SEVERE, "LEAK: " + description + " was accessed here:", records.get(i));
+            }
+        }
+    }
+
+    public static final class Tracker extends WeakReference<Object> {
+
+        private final String description;
+        private final Throwable allocation;
+        private final ArrayDeque<Throwable> accesses; // null if not recording
+
+        private Tracker(Object referent, String description, boolean recordAccesses) {
+            super(referent, QUEUE);
+            this.description = description;
+            this.allocation = new Throwable("Allocated at");
+            this.accesses = recordAccesses ? new ArrayDeque<Throwable>(MAX_RECORDS) : null;
+        }
+
+        /**
+         * Records the current stack as the latest access (if the level is ADVANCED or higher).
+         */
+        public void record() {
+            if (accesses != null) {
+                Throwable access = new Throwable("Accessed at");
+                synchronized (accesses) {
+                    if (accesses.size() == MAX_RECORDS) {
+                        accesses.removeFirst();
+                    }
+                    accesses.addLast(access);
+                }
+            }
+        }
+
+        /**
+         * Stops tracking, as the object was deallocated properly.
+         */
+        public void close() {
+            LIVE.remove(this);
+            clear();
+        }
+
+        private List<Throwable> records() {
+            List<Throwable> records = new ArrayList<>();
+            records.add(allocation);
+            if (accesses != null) {
+                synchronized (accesses) {
+                    records.addAll(accesses);
+                }
+            }
+            return records;
+        }
+    }
+
+    private static Detection parseLevel(String value) {
+        if (value == null) {
+            return Detection.DISABLED;
+        }
+        try {
+            return Detection.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            LOG.warning("Unknown leak detection level '" + value + "', leak detection is DISABLED.");
+            return Detection.DISABLED;
+        }
+    }
+}
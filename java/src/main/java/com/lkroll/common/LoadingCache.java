@@ -0,0 +1,347 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * A thread-safe cache that loads missing values itself, on top of a
+ * {@link ConcurrentLRUCache}.
+ *
+ * Concurrent requests for the same missing key are coalesced, so that only
+ * one of them calls the loader and the others wait for its result. Failed
+ * loads are not cached and their exception is rethrown to everyone waiting
+ * (wrapped into a RuntimeException if it is checked). Loaders returning null
+ * mean there is no value, which is not cached either.
+ *
+ * With {@link #refreshAfterWrite(long, TimeUnit)} a hit on an entry that is
+ * older than the refresh interval reloads it on the executor, while the old
+ * value is served until the new one is in place.
+ *
+ * @author lkroll
+ * @param <K> Key
+ * @param <V> Value
+ */
+public class LoadingCache<K, V> {
+
+    private final ConcurrentLRUCache<K, Loaded<V>> cache;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loads = new ConcurrentHashMap<>();
+    private final Executor executor;
+    private volatile long refreshNanos = -1;
+    private volatile LongSupplier ticker = System::nanoTime;
+    private volatile CacheStats stats = null;
+
+    /**
+     * @param capacity the maximum number of entries
+     * @param executor runs asynchronous loads and refreshes
+     * @param evictionHandler called for every evicted entry, may be null
+     */
+    public LoadingCache(int capacity, Executor executor, LRUCache.EvictionHandler<K, V> evictionHandler) {
+        this.executor = executor;
+        LRUCache.EvictionHandler<K, Loaded<V>> handler = new LRUCache.EvictionHandler<K, Loaded<V>>() {
+            @Override
+            public void evicted(Map.Entry<K, Loaded<V>> entry) {
+                evicted(entry, LRUCache.EvictionCause.SIZE);
+            }
+
+            @Override
+            public void evicted(Map.Entry<K, Loaded<V>> entry, LRUCache.EvictionCause cause) {
+                CacheStats s = stats;
+                if (s != null) {
+                    s.recordEviction(cause);
+                }
+                if (evictionHandler != null) {
+                    evictionHandler.evicted(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().value), cause);
+                }
+            }
+        };
+        this.cache = new ConcurrentLRUCache<>(capacity, handler);
+    }
+
+    public LoadingCache(int capacity) {
+        this(capacity, ForkJoinPool.commonPool(), null);
+    }
+
+    /**
+     * Reloads entries in the background when they are hit after the given
+     * time since they were loaded.
+     */
+    public LoadingCache<K, V> refreshAfterWrite(long duration, TimeUnit unit) {
+        this.refreshNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * Records hits and misses of the get methods, evictions, and the outcome
+     * and duration of loads into stats.
+     */
+    public LoadingCache<K, V> recordStats(CacheStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    /**
+     * Replaces {@link System#nanoTime()} as the source of time for refreshing.
+     */
+    public LoadingCache<K, V> withTicker(LongSupplier ticker) {
+        this.ticker = ticker;
+        return this;
+    }
+
+    /**
+     * @return the cached value for key, or null (without loading it)
+     */
+    public V getIfPresent(K key) {
+        Loaded<V> l = cache.get(key);
+        return (l == null) ? null : l.value;
+    }
+
+    public void put(K key, V value) {
+        cache.put(key, new Loaded<>(value, ticker.getAsLong()));
+    }
+
+    /**
+     * Removes key, without calling the eviction handler.
+     *
+     * A load of key that is in progress will still put its result.
+     */
+    public void invalidate(K key) {
+        cache.remove(key);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the value for key, loading it in this thread if necessary, or
+     * waiting for another thread's load of the same key.
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        Loaded<V> l = cache.get(key);
+        recordGet(l);
+        if (l != null) {
+            checkRefresh(key, l, loader);
+            return l.value;
+        }
+        CompletableFuture<V> f = new CompletableFuture<>();
+        CompletableFuture<V> existing = loads.putIfAbsent(key, f);
+        if (existing != null) {
+            return join(existing);
+        }
+        load(key, loader, f);
+        return join(f);
+    }
+
+    /**
+     * Like {@link #get(Object, Function)}, but loads on the executor.
+     */
+    public CompletableFuture<V> getAsync(K key, Function<? super K, ? extends V> loader) {
+        Loaded<V> l = cache.get(key);
+        recordGet(l);
+        if (l != null) {
+            checkRefresh(key, l, loader);
+            return CompletableFuture.completedFuture(l.value);
+        }
+        CompletableFuture<V> f = new CompletableFuture<>();
+        CompletableFuture<V> existing = loads.putIfAbsent(key, f);
+        if (existing == null) {
+            submit(key, loader, f);
+            existing = f;
+        }
+        return existing.thenApply(v -> v); // callers mustn't be able to complete the shared future
+    }
+
+    /**
+     * Returns the values for all keys, loading all missing ones with a single
+     * call to bulkLoader (apart from those some other thread is already
+     * loading).
+     *
+     * Keys the loader has no value for are missing from the result. The
+     * loader may return additional entries, which are cached as well.
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys, Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> bulkLoader) {
+        Map<K, V> result = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> waiting = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> claimed = new HashMap<>();
+        for (K key : keys) {
+            Loaded<V> l = cache.get(key);
+            recordGet(l);
+            if (l != null) {
+                result.put(key, l.value);
+                continue;
+            }
+            if (waiting.containsKey(key)) {
+                continue;
+            }
+            CompletableFuture<V> f = new CompletableFuture<>();
+            CompletableFuture<V> existing = loads.putIfAbsent(key, f);
+            if (existing == null) {
+                claimed.put(key, f);
+                waiting.put(key, f);
+            } else {
+                waiting.put(key, existing);
+            }
+        }
+        if (!claimed.isEmpty()) {
+            Set<K> missing = new LinkedHashSet<>(claimed.keySet());
+            long start = System.nanoTime();
+            try {
+                Map<? extends K, ? extends V> loaded = bulkLoader.apply(missing);
+                long now = ticker.getAsLong();
+                for (Map.Entry<? extends K, ? extends V> e : loaded.entrySet()) {
+                    if (e.getValue() != null) {
+                        cache.put(e.getKey(), new Loaded<>(e.getValue(), now));
+                    }
+                }
+                recordLoad(true, start);
+                for (Map.Entry<K, CompletableFuture<V>> e : claimed.entrySet()) {
+                    loads.remove(e.getKey(), e.getValue());
+                    e.getValue().complete(loaded.get(e.getKey()));
+                }
+            } catch (Throwable t) {
+                recordLoad(false, start);
+                for (Map.Entry<K, CompletableFuture<V>> e : claimed.entrySet()) {
+                    loads.remove(e.getKey(), e.getValue());
+                    e.getValue().completeExceptionally(t);
+                }
+            }
+        }
+        for (Map.Entry<K, CompletableFuture<V>> e : waiting.entrySet()) {
+            V value = join(e.getValue());
+            if (value != null) {
+                result.put(e.getKey(), value);
+            }
+        }
+        return result;
+    }
+
+    private void checkRefresh(K key, Loaded<V> l, Function<? super K, ? extends V> loader) {
+        long refresh = refreshNanos;
+        if ((refresh < 0) || ((ticker.getAsLong() - l.loadedAt) < refresh)) {
+            return;
+        }
+        CompletableFuture<V> f = new CompletableFuture<>();
+        if (loads.putIfAbsent(key, f) == null) {
+            submit(key, loader, f);
+        }
+    }
+
+    private void submit(K key, Function<? super K, ? extends V> loader, CompletableFuture<V> f) {
+        try {
+            executor.execute(() -> load(key, loader, f));
+        } catch (Throwable t) {
+            // e.g. a saturated or shut down pool, don't leave the claimed load dangling
+            loads.remove(key, f);
+            f.completeExceptionally(t);
+        }
+    }
+
+    private void load(K key, Function<? super K, ? extends V> loader, CompletableFuture<V> f) {
+        long start = System.nanoTime();
+        boolean loading = false;
+        try {
+            // someone may have finished loading between our miss and claiming the load
+            Loaded<V> l = cache.get(key);
+            V value;
+            if ((l != null) && ((refreshNanos < 0) || ((ticker.getAsLong() - l.loadedAt) < refreshNanos))) {
+                value = l.value;
+            } else {
+                loading = true;
+                value = loader.apply(key);
+                loading = false;
+                recordLoad(true, start);
+                if (value != null) {
+                    cache.put(key, new Loaded<>(value, ticker.getAsLong()));
+                }
+            }
+            loads.remove(key, f);
+            f.complete(value);
+        } catch (Throwable t) {
+            if (loading) {
+                recordLoad(false, start);
+            }
+            loads.remove(key, f);
+            f.completeExceptionally(t);
+        }
+    }
+
+    private void recordGet(Loaded<V> l) {
+        CacheStats s = stats;
+        if (s != null) {
+            if (l != null) {
+                s.recordHit();
+            } else {
+                s.recordMiss();
+            }
+        }
+    }
+
+    private void recordLoad(boolean success, long start) {
+        CacheStats s = stats;
+        if (s != null) {
+            long nanos = System.nanoTime() - start;
+            if (success) {
+                s.recordLoadSuccess(nanos);
+            } else {
+                s.recordLoadFailure(nanos);
+            }
+        }
+    }
+
+    private static <V> V join(CompletableFuture<V> f) {
+        try {
+            return f.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static final class Loaded<V> {
+
+        private final V value;
+        private final long loadedAt;
+
+        private Loaded(V value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import java.util.Arrays;
+
+/**
+ * An LRU cache with fixed capacity for primitive long keys, which neither
+ * boxes keys nor allocates objects per entry.
+ *
+ * Entries live in parallel arrays (key, value, and the previous and next
+ * entry in recency order) which are allocated up front for the full
+ * capacity. They are found through an open addressing hash table of entry
+ * indices with linear probing, kept at most half full. That comes to about
+ * 28 bytes per entry (with compressed oops) instead of the ~60 of an
+ * {@link LRUCache} entry with a boxed key.
+ *
+ * The {@link EvictionHandler} is called for the least recently used entry
+ * when a new entry is added to a full cache, like with {@link LRUCache}.
+ *
+ * Not thread-safe.
+ *
+ * @author lkroll
+ * @param <V> Value
+ */
+public class LongLRUCache<V> {
+
+    private static final int NONE = -1;
+
+    private final int cap;
+    private final EvictionHandler<V> evicH;
+    private final long[] keys;
+    private final Object[] values;
+    private final int[] prev;
+    private final int[] next;
+    private final int[] table; // entry index + 1, 0 means empty
+    private final int mask;
+    private int head = NONE; // least recently used
+    private int tail = NONE; // most recently used
+    private int freeList = NONE; // chained through next
+    private int unused = 0; // entries from here on were never used
+    private int size = 0;
+    private CacheStats stats = null;
+
+    public LongLRUCache(int capacity, EvictionHandler<V> evictionHandler) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (capacity > (1 << 29)) {
+            throw new IllegalArgumentException("capacity is too large: " + capacity);
+        }
+        this.cap = capacity;
+        this.evicH = evictionHandler;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.prev = new int[capacity];
+        this.next = new int[capacity];
+        int n = 2;
+        while (n < 2 * capacity) {
+            n <<= 1;
+        }
+        this.table = new int[n];
+        this.mask = n - 1;
+    }
+
+    public LongLRUCache(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Records hits and misses of {@link #get(long)} and evictions into stats.
+     */
+    public LongLRUCache<V> recordStats(CacheStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return cap;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the value for key (making it the most recently used entry), or null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            if (stats != null) {
+                stats.recordMiss();
+            }
+            return null;
+        }
+        if (stats != null) {
+            stats.recordHit();
+        }
+        int e = table[slot] - 1;
+        moveToTail(e);
+        return (V) values[e];
+    }
+
+    /**
+     * Like {@link #get(long)}, but without changing the recency order.
+     */
+    @SuppressWarnings("unchecked")
+    public V peek(long key) {
+        int slot = find(key);
+        return (slot < 0) ? null : (V) values[table[slot] - 1];
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * @return the previous value for key, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        int slot = find(key);
+        if (slot >= 0) {
+            int e = table[slot] - 1;
+            V old = (V) values[e];
+            values[e] = value;
+            moveToTail(e);
+            return old;
+        }
+        if (size == cap) {
+            evictEldest();
+        }
+        int e = allocate();
+        keys[e] = key;
+        values[e] = value;
+        linkLast(e);
+        insert(key, e);
+        size++;
+        return null;
+    }
+
+    /**
+     * @return the removed value for key, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return null;
+        }
+        int e = table[slot] - 1;
+        V old = (V) values[e];
+        removeSlot(slot);
+        unlink(e);
+        free(e);
+        size--;
+        return old;
+    }
+
+    /**
+     * Removes all entries without calling the eviction handler.
+     */
+    public void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(values, null);
+        head = NONE;
+        tail = NONE;
+        freeList = NONE;
+        unused = 0;
+        size = 0;
+    }
+
+    /**
+     * Calls f for every entry, from the least to the most recently used.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryVisitor<? super V> f) {
+        for (int e = head; e != NONE; e = next[e]) {
+            f.visit(keys[e], (V) values[e]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void evictEldest() {
+        int e = head;
+        long key = keys[e];
+        V value = (V) values[e];
+        if (stats != null) {
+            stats.recordEviction(LRUCache.EvictionCause.SIZE);
+        }
+        if (evicH != null) {
+            evicH.evicted(key, value);
+        }
+        removeSlot(find(key));
+        unlink(e);
+        free(e);
+        size--;
+    }
+
+    private int allocate() {
+        if (freeList != NONE) {
+            int e = freeList;
+            freeList = next[e];
+            return e;
+        }
+        return unused++;
+    }
+
+    private void free(int e) {
+        values[e] = null;
+        next[e] = freeList;
+        freeList = e;
+    }
+
+    private void linkLast(int e) {
+        prev[e] = tail;
+        next[e] = NONE;
+        if (tail == NONE) {
+            head = e;
+        } else {
+            next[tail] = e;
+        }
+        tail = e;
+    }
+
+    private void unlink(int e) {
+        int p = prev[e];
+        int n = next[e];
+        if (p == NONE) {
+            head = n;
+        } else {
+            next[p] = n;
+        }
+        if (n == NONE) {
+            tail = p;
+        } else {
+            prev[n] = p;
+        }
+    }
+
+    private void moveToTail(int e) {
+        if (e != tail) {
+            unlink(e);
+            linkLast(e);
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int find(long key) {
+        int i = hash(key) & mask;
+        while (true) {
+            int e = table[i];
+            if (e == 0) {
+                return -1;
+            }
+            if (keys[e - 1] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void insert(long key, int e) {
+        int i = hash(key) & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = e + 1;
+    }
+
+    private void removeSlot(int i) {
+        // backward shift deletion, so lookups don't need tombstones
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int e = table[j];
+            if (e == 0) {
+                break;
+            }
+            int home = hash(keys[e - 1]) & mask;
+            boolean movable = (j > i) ? ((home <= i) || (home > j)) : ((home <= i) && (home > j));
+            if (movable) {
+                table[i] = e;
+                i = j;
+            }
+        }
+        table[i] = 0;
+    }
+
+    public static interface EvictionHandler<V> {
+        public void evicted(long key, V value);
+    }
+
+    public static interface EntryVisitor<V> {
+        public void visit(long key, V value);
+    }
+}
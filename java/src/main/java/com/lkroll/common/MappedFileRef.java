@@ -0,0 +1,407 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.FileRegion;
+import io.netty.util.internal.PlatformDependent;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A DataRef where the underlying storage is a memory mapped file.
+ *
+ * The file is mapped as a series of {@link MappedByteBuffer} segments, so files
+ * larger than 2GB can be addressed as well. Single byte access does not incur a
+ * syscall and {@link #split(long, int)} produces views into the same mapping
+ * instead of copies.
+ *
+ * The size of the ref is fixed to the file size at the time of mapping.
+ * All views share the reference count of the mapping and the segments are
+ * unmapped as soon as it drops to zero.
+ *
+ * @author lkroll
+ */
+public class MappedFileRef implements DataRef {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30; // 1GB
+    private static final int COPY_CHUNK_SIZE = 64 * 1024;
+
+    private final Mapping mapping;
+    private final long begin;
+    private final long length;
+
+    /**
+     * Maps the whole file read-write with the default segment size.
+     *
+     * @param f the file
+     * @param raf an open handle to {@code f}
+     */
+    public MappedFileRef(File f, RandomAccessFile raf) {
+        this(f, raf, FileChannel.MapMode.READ_WRITE, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Maps the whole file.
+     *
+     * @param f the file
+     * @param raf an open handle to {@code f} (must be writable for READ_WRITE)
+     * @param mode the mapping mode
+     * @param segmentSize the maximum size of each mapped window (must be a
+     * power of two)
+     */
+    public MappedFileRef(File f, RandomAccessFile raf, FileChannel.MapMode mode, int segmentSize) {
+        if ((segmentSize <= 0) || (Integer.bitCount(segmentSize) != 1)) {
+            throw new IllegalArgumentException("segmentSize must be a power of two: " + segmentSize);
+        }
+        this.mapping = new Mapping(f, raf, mode, segmentSize);
+        this.begin = 0;
+        this.length = mapping.size;
+    }
+
+    private MappedFileRef(Mapping mapping, long begin, long length) {
+        this.mapping = mapping;
+        this.begin = begin;
+        this.length = length;
+        mapping.retain();
+    }
+
+    public File getFile() {
+        return mapping.f;
+    }
+
+    public void markForDeletion() {
+        mapping.delete = true;
+    }
+
+    /**
+     * Flushes all changes to the mapped segments to the storage device.
+     */
+    public void force() {
+        for (MappedByteBuffer segment : mapping.segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Produces a view of the range [start, start + length) of this ref without
+     * copying.
+     *
+     * The view shares (and retains) the underlying mapping.
+     *
+     * @param start position of the first byte in the view
+     * @param length size of the view
+     * @return the new view
+     */
+    public MappedFileRef slice(long start, long length) {
+        if ((start < 0) || (length < 0) || (start + length > this.length)) {
+            throw new IndexOutOfBoundsException("Asked for slice [" + start + ", " + (start + length) + ") but length is only " + this.length);
+        }
+        return new MappedFileRef(mapping, begin + start, length);
+    }
+
+    @Override
+    public void retain() {
+        mapping.retain();
+    }
+
+    @Override
+    public void release() {
+        mapping.release();
+    }
+
+    public long rc() { // for debugging only!
+        return mapping.rc.get();
+    }
+
+    @Override
+    public long size() {
+        return length;
+    }
+
+    @Override
+    public byte[] dereference() {
+        if (length == 0) {
+            return new byte[0];
+        }
+        return dereference(0, length);
+    }
+
+    @Override
+    public byte dereference(long i) {
+        if ((i >= length) || (i < 0)) {
+            throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + length);
+        }
+        long pos = begin + i;
+        return mapping.segment(pos).get(mapping.offset(pos));
+    }
+
+    @Override
+    public byte[] dereference(long start, long end) {
+        if ((start >= length) || (start < 0)) {
+            throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length);
+        }
+        if ((end > length) || (end < start)) {
+            throw new IndexOutOfBoundsException("Asked for end " + end + " but length is only " + length + " and start is" + start);
+        }
+        long l = end - start;
+        if (l > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("Range doesn't fit into an integer: " + l);
+        }
+        byte[] data = new byte[(int) l];
+        read(begin + start, data, 0, data.length);
+        return data;
+    }
+
+    @Override
+    public void assign(long i, byte val) {
+        if ((i >= length) || (i < 0)) {
+            throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + length);
+        }
+        long pos = begin + i;
+        mapping.segment(pos).put(mapping.offset(pos), val);
+    }
+
+    @Override
+    public void assign(long start, byte[] newData) {
+        checkAssignBounds(start, newData.length);
+        write(begin + start, newData, 0, newData.length);
+    }
+
+    @Override
+    public void assign(long start, DataRef newData) {
+        long l = newData.size();
+        checkAssignBounds(start, l);
+        if (newData instanceof MappedFileRef) {
+            MappedFileRef src = (MappedFileRef) newData;
+            long pos = 0;
+            while (pos < l) {
+                ByteBuffer srcWindow = src.window(src.begin + pos, l - pos);
+                ByteBuffer dstWindow = window(begin + start + pos, srcWindow.remaining());
+                srcWindow.limit(srcWindow.position() + dstWindow.remaining());
+                pos += dstWindow.remaining();
+                dstWindow.put(srcWindow);
+            }
+        } else {
+            // go in bounded chunks, so we never materialise all of newData at once
+            long pos = 0;
+            while (pos < l) {
+                long end = Math.min(l, pos + COPY_CHUNK_SIZE);
+                byte[] chunk = newData.dereference(pos, end);
+                write(begin + start + pos, chunk, 0, chunk.length);
+                pos = end;
+            }
+        }
+    }
+
+    @Override
+    public void copyTo(DataRef target, long offset) {
+        target.assign(offset, this);
+    }
+
+    @Override
+    public void copyTo(byte[] target, int offset) {
+        if (length > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("length doesn't fit into an integer: " + length);
+        }
+        if ((offset < 0) || (offset + length > target.length)) {
+            throw new IndexOutOfBoundsException("Asked for offset " + offset + " and length " + length + " but target length is only " + target.length);
+        }
+        read(begin, target, offset, (int) length);
+    }
+
+    @Override
+    public void copyTo(ByteBuf buffer) {
+        if (length > Integer.MAX_VALUE) {
+            throw new IndexOutOfBoundsException("length doesn't fit into an integer: " + length);
+        }
+        long pos = 0;
+        while (pos < length) {
+            ByteBuffer w = window(begin + pos, length - pos);
+            pos += w.remaining();
+            buffer.writeBytes(w);
+        }
+    }
+
+    @Override
+    public FileRegion toFileRegion() {
+        return new FileRefRegion(this, mapping.raf.getChannel(), begin, length);
+    }
+
+    @Override
+    public Iterable<DataRef> split(long numberOfChunks, int chunkSize) {
+        return new MFRIterator(chunkSize);
+    }
+
+    private void checkAssignBounds(long start, long l) {
+        if ((start > length) || (start < 0) || ((start == length) && (l > 0))) {
+            throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length);
+        }
+        if (start + l > length) {
+            throw new IndexOutOfBoundsException("Asked for length " + l + " but length is only " + length);
+        }
+    }
+
+    /**
+     * Gives a buffer positioned at the absolute position pos, that extends at
+     * most l bytes, but never beyond the end of pos' segment.
+     */
+    private ByteBuffer window(long pos, long l) {
+        ByteBuffer w = mapping.segment(pos).duplicate();
+        int offset = mapping.offset(pos);
+        w.position(offset);
+        w.limit((int) Math.min((long) w.capacity(), offset + l));
+        return w;
+    }
+
+    private void read(long pos, byte[] target, int offset, int l) {
+        int done = 0;
+        while (done < l) {
+            ByteBuffer w = window(pos + done, l - done);
+            int n = w.remaining();
+            w.get(target, offset + done, n);
+            done += n;
+        }
+    }
+
+    private void write(long pos, byte[] source, int offset, int l) {
+        int done = 0;
+        while (done < l) {
+            ByteBuffer w = window(pos + done, l - done);
+            int n = w.remaining();
+            w.put(source, offset + done, n);
+            done += n;
+        }
+    }
+
+    private static final class Mapping {
+
+        private final File f;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer[] segments;
+        private final int shift;
+        private final long mask;
+        private final long size;
+        private final AtomicLong rc = new AtomicLong(1);
+        private volatile boolean delete = false;
+        private final LeakDetector.Tracker leak;
+
+        private Mapping(File f, RandomAccessFile raf, FileChannel.MapMode mode, int segmentSize) {
+            this.f = f;
+            this.raf = raf;
+            this.shift = Integer.numberOfTrailingZeros(segmentSize);
+            this.mask = segmentSize - 1;
+            this.leak = LeakDetector.track(this, "MappedFileRef", f);
+            try {
+                FileChannel channel = raf.getChannel();
+                this.size = channel.size();
+                int numSegments = (int) J6.roundUp(size, (long) segmentSize);
+                this.segments = new MappedByteBuffer[numSegments];
+                for (int i = 0; i < numSegments; i++) {
+                    long position = ((long) i) << shift;
+                    long l = Math.min((long) segmentSize, size - position);
+                    segments[i] = channel.map(mode, position, l);
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        private MappedByteBuffer segment(long pos) {
+            return segments[(int) (pos >>> shift)];
+        }
+
+        private int offset(long pos) {
+            return (int) (pos & mask);
+        }
+
+        private void retain() {
+            rc.incrementAndGet();
+            if (leak != null) {
+                leak.record();
+            }
+        }
+
+        private void release() {
+            if (leak != null) {
+                leak.record();
+            }
+            long count = rc.decrementAndGet();
+            if (count == 0) {
+                if (leak != null) {
+                    leak.close();
+                }
+                for (int i = 0; i < segments.length; i++) {
+                    PlatformDependent.freeDirectBuffer(segments[i]); // unmaps
+                    segments[i] = null;
+                }
+                try {
+                    raf.close();
+                    if (delete) {
+                        f.delete();
+                    }
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            if (count < 0) {
+                throw new IllegalStateException("Object was already deallocated: " + f);
+            }
+        }
+    }
+
+    public class MFRIterator implements Iterator<DataRef>, Iterable<DataRef> {
+
+        public long pos = 0;
+        private final int chunkSize;
+
+        private MFRIterator(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return length > pos;
+        }
+
+        @Override
+        public DataRef next() {
+            int chunkLength = (int) Math.min((long) chunkSize, length - pos); // the smaller one must be int sized
+            MappedFileRef subarea = new MappedFileRef(mapping, begin + pos, chunkLength);
+            pos += chunkLength;
+            return subarea;
+        }
+
+        @Override
+        public Iterator<DataRef> iterator() {
+            return this;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not yet implemented!");
+        }
+    }
+}
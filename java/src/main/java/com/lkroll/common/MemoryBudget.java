@@ -0,0 +1,90 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe counter of bytes that may be reserved against a fixed capacity.
+ *
+ * Used to bound the total heap used by a group of buffers (e.g. all
+ * {@link SpillingDataRef}s), without any of them knowing about each other.
+ *
+ * @author lkroll
+ */
+public class MemoryBudget {
+
+    public final long capacity;
+    private final AtomicLong used = new AtomicLong(0);
+
+    public MemoryBudget(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public static MemoryBudget unbounded() {
+        return new MemoryBudget(Long.MAX_VALUE);
+    }
+
+    /**
+     * Reserves bytes if that doesn't exceed the capacity.
+     *
+     * @param bytes how much to reserve
+     * @return true if the reservation succeeded (and must be released later)
+     */
+    public boolean tryReserve(long bytes) {
+        while (true) {
+            long current = used.get();
+            long next = current + bytes;
+            if ((next > capacity) || (next < 0)) {
+                return false;
+            }
+            if (used.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns previously reserved bytes.
+     *
+     * @param bytes how much to return
+     */
+    public void release(long bytes) {
+        long after = used.addAndGet(-bytes);
+        if (after < 0) {
+            throw new IllegalStateException("Released more than was reserved: " + this);
+        }
+    }
+
+    public long used() {
+        return used.get();
+    }
+
+    public long available() {
+        return capacity - used.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget(used=" + used.get() + ", capacity=" + capacity + ")";
+    }
+}
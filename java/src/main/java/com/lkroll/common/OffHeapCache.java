@@ -0,0 +1,607 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+
+/**
+ * A cache that keeps serialized keys and values in off-heap memory, so that
+ * large working sets don't burden the garbage collector.
+ *
+ * Keys are hashed onto independently locked segments. Each segment owns up to
+ * capacity / segments bytes of fixed size direct memory pages, into which
+ * entries are appended one after the other, and an off-heap open addressing
+ * hash index. When the segment runs out of memory the oldest page is
+ * recycled with a CLOCK (second chance) policy: entries that were read since
+ * they were written are moved to the spare page and the rest are evicted.
+ * Overwritten and removed entries leave garbage in their page until it is
+ * recycled.
+ *
+ * {@link #getRef(Object)} returns a read-only {@link DataRef} view of the
+ * serialized value without copying it. A page with outstanding views is not
+ * overwritten, but dropped from the segment and freed when the last view is
+ * released, so views can keep memory alive outside of the capacity.
+ *
+ * Evicted entries are deserialized and passed to the
+ * {@link LRUCache.EvictionHandler} while the segment lock is held, in the
+ * middle of a put whose serialized entry still sits in a per-thread scratch
+ * buffer. The handler must therefore not access the cache.
+ *
+ * @author lkroll
+ * @param <K> Key
+ * @param <V> Value
+ */
+public class OffHeapCache<K, V> {
+
+    public static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+    public static final int MAX_PAGE_SIZE = 1 << 20; // offsets are packed into 20 bits
+    private static final int HEADER = 9; // flags:byte, key length:int, value length:int
+    private static final byte REFERENCED = 1;
+    private static final int MAX_INDEX_SLOTS = 1 << 24; // hashes are packed into 24 bits
+    private static final HashFunction HASH = Hashing.murmur3_32();
+    private static final ThreadLocal<ByteBuf> SCRATCH = ThreadLocal.withInitial(() -> Unpooled.buffer(256));
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int pageSize;
+    private final long cap;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final LRUCache.EvictionHandler<K, V> evicH;
+    private volatile CacheStats stats = null;
+
+    /**
+     * @param capacity the maximum number of bytes of pages (rounded up to at least two pages per segment)
+     * @param pageSize the size of the memory pages, which bounds the size of a serialized entry
+     * @param concurrencyLevel the expected number of concurrently accessing threads
+     * @param keySerializer serializes keys, where equal keys must have equal serializations
+     * @param valueSerializer serializes values
+     * @param evictionHandler called for every evicted entry, may be null; must not access the cache
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public OffHeapCache(long capacity, int pageSize, int concurrencyLevel, Serializer<K> keySerializer,
+            Serializer<V> valueSerializer, LRUCache.EvictionHandler<K, V> evictionHandler) {
+        if ((pageSize <= HEADER) || (pageSize > MAX_PAGE_SIZE)) {
+            throw new IllegalArgumentException("pageSize must be in (" + HEADER + ", " + MAX_PAGE_SIZE + "]: " + pageSize);
+        }
+        if (concurrencyLevel <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel must be positive: " + concurrencyLevel);
+        }
+        long totalPages = Math.max(2L, J6.roundUp(capacity, (long) pageSize));
+        int n = 1;
+        while ((n < concurrencyLevel) && ((totalPages / (2 * n)) >= 2)) {
+            n <<= 1;
+        }
+        int pagesPerSegment = (int) Math.min((1 << 20) - 1, Math.max(2L, totalPages / n));
+        this.pageSize = pageSize;
+        this.cap = ((long) pagesPerSegment) * pageSize * n;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.evicH = evictionHandler;
+        this.segments = new OffHeapCache.Segment[n];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment(pagesPerSegment);
+        }
+    }
+
+    public OffHeapCache(long capacity, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this(capacity, DEFAULT_PAGE_SIZE, Runtime.getRuntime().availableProcessors(), keySerializer, valueSerializer, null);
+    }
+
+    /**
+     * Records hits and misses of the get methods and evictions into stats.
+     */
+    public OffHeapCache<K, V> recordStats(CacheStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of bytes of memory pages
+     */
+    public long capacity() {
+        return cap;
+    }
+
+    /**
+     * @return the number of bytes of memory pages currently allocated
+     */
+    public long usedBytes() {
+        long sum = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                sum += ((long) segment.allocatedPages) * pageSize;
+            }
+        }
+        return sum;
+    }
+
+    public int size() {
+        int sum = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                sum += segment.count;
+            }
+        }
+        return sum;
+    }
+
+    public void put(K key, V value) {
+        ByteBuf scratch = scratch();
+        keySerializer.serialize(key, scratch);
+        int keyLength = scratch.writerIndex();
+        valueSerializer.serialize(value, scratch);
+        int entrySize = HEADER + scratch.writerIndex();
+        if (entrySize > pageSize) {
+            throw new IllegalArgumentException("Entry of " + entrySize + " bytes doesn't fit into a page of " + pageSize + " bytes");
+        }
+        int hash = hash(scratch, keyLength);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            segment.put(hash, scratch, keyLength);
+        }
+    }
+
+    /**
+     * @return the deserialized value for key, or null
+     */
+    public V get(K key) {
+        ByteBuf scratch = scratch();
+        keySerializer.serialize(key, scratch);
+        int keyLength = scratch.writerIndex();
+        int hash = hash(scratch, keyLength);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            ByteBuf value = segment.get(hash, scratch, keyLength);
+            return (value == null) ? null : valueSerializer.deserialize(value);
+        }
+    }
+
+    /**
+     * @return a read-only view of the serialized value for key that must be released, or null
+     */
+    public DataRef getRef(K key) {
+        ByteBuf scratch = scratch();
+        keySerializer.serialize(key, scratch);
+        int keyLength = scratch.writerIndex();
+        int hash = hash(scratch, keyLength);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            ByteBuf value = segment.get(hash, scratch, keyLength);
+            return (value == null) ? null : DirectBufferRef.wrap(value.asReadOnly().retainedSlice());
+        }
+    }
+
+    public boolean containsKey(K key) {
+        ByteBuf scratch = scratch();
+        keySerializer.serialize(key, scratch);
+        int keyLength = scratch.writerIndex();
+        int hash = hash(scratch, keyLength);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.find(hash, scratch, keyLength) >= 0;
+        }
+    }
+
+    /**
+     * Removes key without calling the eviction handler.
+     *
+     * @return whether there was an entry for key
+     */
+    public boolean remove(K key) {
+        ByteBuf scratch = scratch();
+        keySerializer.serialize(key, scratch);
+        int keyLength = scratch.writerIndex();
+        int hash = hash(scratch, keyLength);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(hash, scratch, keyLength);
+            if (slot < 0) {
+                return false;
+            }
+            segment.removeSlot(slot);
+            return true;
+        }
+    }
+
+    /**
+     * Frees all memory. The cache must not be used anymore afterwards, but
+     * outstanding views stay valid until they are released.
+     */
+    public void close() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.close();
+            }
+        }
+    }
+
+    private static ByteBuf scratch() {
+        ByteBuf scratch = SCRATCH.get();
+        scratch.clear();
+        return scratch;
+    }
+
+    private static int hash(ByteBuf buf, int index, int length) {
+        return HASH.hashBytes(buf.nioBuffer(index, length)).asInt();
+    }
+
+    private static int hash(ByteBuf key, int keyLength) {
+        return hash(key, 0, keyLength);
+    }
+
+    private Segment segmentFor(int hash) {
+        if (segments.length == 1) {
+            return segments[0];
+        }
+        return segments[(hash * 0x9E3779B9) >>> segmentShift];
+    }
+
+    private static final class Page {
+
+        private final int id;
+        private final ByteBuf buf;
+        private int used = 0;
+
+        private Page(int id, int size) {
+            this.id = id;
+            this.buf = Unpooled.directBuffer(size, size);
+            buf.writerIndex(size); // ByteBufUtil.equals only looks at readable bytes
+        }
+    }
+
+    private final class Segment {
+
+        private final int maxPages;
+        private final Page[] pages;
+        private final ArrayDeque<Page> full = new ArrayDeque<>(); // oldest first
+        private Page current = null;
+        private Page spare = null;
+        private int allocatedPages = 0;
+        // slots are (hash:24 | page id + 1:20 | offset:20), 0 means empty
+        private ByteBuf index;
+        private int indexMask;
+        private int count = 0;
+
+        private Segment(int maxPages) {
+            this.maxPages = maxPages;
+            this.pages = new Page[maxPages];
+            this.index = newIndex(64);
+            this.indexMask = 63;
+        }
+
+        private ByteBuf newIndex(int slots) {
+            ByteBuf buf = Unpooled.directBuffer(slots * Long.BYTES, slots * Long.BYTES);
+            buf.setZero(0, buf.capacity());
+            return buf;
+        }
+
+        private long slot(int i) {
+            return index.getLong(i << 3);
+        }
+
+        private void setSlot(int i, long value) {
+            index.setLong(i << 3, value);
+        }
+
+        private int find(int hash, ByteBuf key, int keyLength) {
+            int h24 = hash & 0xFFFFFF;
+            int i = h24 & indexMask;
+            while (true) {
+                long s = slot(i);
+                if (s == 0L) {
+                    return -1;
+                }
+                if ((int) (s >>> 40) == h24) {
+                    Page page = pages[pageId(s)];
+                    int offset = offset(s);
+                    if ((page.buf.getInt(offset + 1) == keyLength)
+                            && ByteBufUtil.equals(page.buf, offset + HEADER, key, 0, keyLength)) {
+                        return i;
+                    }
+                }
+                i = (i + 1) & indexMask;
+            }
+        }
+
+        private int findAddress(int hash, long address) {
+            int h24 = hash & 0xFFFFFF;
+            int i = h24 & indexMask;
+            long wanted = (((long) h24) << 40) | address;
+            while (true) {
+                long s = slot(i);
+                if (s == 0L) {
+                    return -1;
+                }
+                if (s == wanted) {
+                    return i;
+                }
+                i = (i + 1) & indexMask;
+            }
+        }
+
+        private void insert(int hash, long address) {
+            if ((count + 1) > ((indexMask + 1) / 4) * 3) {
+                grow();
+            }
+            int h24 = hash & 0xFFFFFF;
+            int i = h24 & indexMask;
+            while (slot(i) != 0L) {
+                i = (i + 1) & indexMask;
+            }
+            setSlot(i, (((long) h24) << 40) | address);
+            count++;
+        }
+
+        private void grow() {
+            int slots = indexMask + 1;
+            if (slots >= MAX_INDEX_SLOTS) {
+                throw new IllegalStateException("Too many entries in a segment: " + count);
+            }
+            ByteBuf old = index;
+            index = newIndex(slots * 2);
+            indexMask = (slots * 2) - 1;
+            for (int j = 0; j < slots; j++) {
+                long s = old.getLong(j << 3);
+                if (s != 0L) {
+                    int i = ((int) (s >>> 40)) & indexMask;
+                    while (slot(i) != 0L) {
+                        i = (i + 1) & indexMask;
+                    }
+                    setSlot(i, s);
+                }
+            }
+            old.release();
+        }
+
+        private void removeSlot(int i) {
+            // backward shift deletion, so lookups don't need tombstones
+            int j = i;
+            while (true) {
+                j = (j + 1) & indexMask;
+                long s = slot(j);
+                if (s == 0L) {
+                    break;
+                }
+                int home = ((int) (s >>> 40)) & indexMask;
+                boolean movable = (j > i) ? ((home <= i) || (home > j)) : ((home <= i) && (home > j));
+                if (movable) {
+                    setSlot(i, s);
+                    i = j;
+                }
+            }
+            setSlot(i, 0L);
+            count--;
+        }
+
+        private ByteBuf get(int hash, ByteBuf key, int keyLength) {
+            int i = find(hash, key, keyLength);
+            CacheStats s = stats;
+            if (i < 0) {
+                if (s != null) {
+                    s.recordMiss();
+                }
+                return null;
+            }
+            if (s != null) {
+                s.recordHit();
+            }
+            long slot = slot(i);
+            Page page = pages[pageId(slot)];
+            int offset = offset(slot);
+            page.buf.setByte(offset, REFERENCED);
+            int valueLength = page.buf.getInt(offset + 5);
+            return page.buf.slice(offset + HEADER + keyLength, valueLength);
+        }
+
+        private void put(int hash, ByteBuf entry, int keyLength) {
+            int existing = find(hash, entry, keyLength);
+            if (existing >= 0) {
+                removeSlot(existing); // the old copy stays as garbage until its page is recycled
+            }
+            int length = entry.writerIndex();
+            // may run the eviction handler, which is why that must not touch the cache (and so the scratch entry)
+            long address = allocate(HEADER + length);
+            Page page = pages[pageId(address)];
+            int offset = offset(address);
+            page.buf.setByte(offset, 0);
+            page.buf.setInt(offset + 1, keyLength);
+            page.buf.setInt(offset + 5, length - keyLength);
+            page.buf.setBytes(offset + HEADER, entry, 0, length);
+            insert(hash, address);
+        }
+
+        private long allocate(int size) {
+            if ((current == null) || ((current.used + size) > pageSize)) {
+                nextPage();
+                while ((current.used + size) > pageSize) {
+                    nextPage(); // moved entries filled the whole page
+                }
+            }
+            long address = address(current.id, current.used);
+            current.used += size;
+            return address;
+        }
+
+        private void nextPage() {
+            if (current != null) {
+                full.addLast(current);
+            }
+            if (allocatedPages < (maxPages - 1)) { // keeping one for the spare
+                current = newPage();
+                return;
+            }
+            // recycle the oldest page, giving referenced entries a second chance on the spare page
+            Page victim = full.pollFirst();
+            Page target = (spare != null) ? spare : newPage();
+            spare = null;
+            int offset = 0;
+            while (offset < victim.used) {
+                int keyLength = victim.buf.getInt(offset + 1);
+                int entrySize = HEADER + keyLength + victim.buf.getInt(offset + 5);
+                int hash = hash(victim.buf, offset + HEADER, keyLength);
+                int i = findAddress(hash, address(victim.id, offset));
+                if (i >= 0) {
+                    boolean referenced = victim.buf.getByte(offset) == REFERENCED;
+                    if (referenced && ((target.used + entrySize) <= pageSize)) {
+                        target.buf.setBytes(target.used, victim.buf, offset, entrySize);
+                        target.buf.setByte(target.used, 0);
+                        long moved = address(target.id, target.used);
+                        setSlot(i, (((long) (hash & 0xFFFFFF)) << 40) | moved);
+                        target.used += entrySize;
+                    } else {
+                        evict(victim, offset, keyLength);
+                        removeSlot(i);
+                    }
+                }
+                offset += entrySize;
+            }
+            if (victim.buf.refCnt() == 1) {
+                victim.used = 0;
+                spare = victim;
+            } else {
+                // views are still reading it, so let them free it when they are done
+                victim.buf.release();
+                pages[victim.id] = null;
+                allocatedPages--;
+                spare = newPage(victim.id);
+            }
+            current = target;
+        }
+
+        private Page newPage() {
+            for (int id = 0; id < pages.length; id++) {
+                if (pages[id] == null) {
+                    return newPage(id);
+                }
+            }
+            throw new IllegalStateException("No free page id, but only " + allocatedPages + " pages allocated");
+        }
+
+        private Page newPage(int id) {
+            Page page = new Page(id, pageSize);
+            pages[id] = page;
+            allocatedPages++;
+            return page;
+        }
+
+        private void evict(Page page, int offset, int keyLength) {
+            CacheStats s = stats;
+            if (s != null) {
+                s.recordEviction(LRUCache.EvictionCause.SIZE);
+            }
+            if (evicH != null) {
+                int valueLength = page.buf.getInt(offset + 5);
+                K key = keySerializer.deserialize(page.buf.slice(offset + HEADER, keyLength));
+                V value = valueSerializer.deserialize(page.buf.slice(offset + HEADER + keyLength, valueLength));
+                evicH.evicted(new AbstractMap.SimpleImmutableEntry<>(key, value), LRUCache.EvictionCause.SIZE);
+            }
+        }
+
+        private void close() {
+            for (int id = 0; id < pages.length; id++) {
+                if (pages[id] != null) {
+                    pages[id].buf.release();
+                    pages[id] = null;
+                }
+            }
+            full.clear();
+            current = null;
+            spare = null;
+            allocatedPages = 0;
+            count = 0;
+            index.release();
+        }
+    }
+
+    private static long address(int pageId, int offset) {
+        return (((long) (pageId + 1)) << 20) | offset;
+    }
+
+    private static int pageId(long slotOrAddress) {
+        return ((int) ((slotOrAddress >>> 20) & 0xFFFFF)) - 1;
+    }
+
+    private static int offset(long slotOrAddress) {
+        return (int) (slotOrAddress & 0xFFFFF);
+    }
+
+    /**
+     * Converts keys or values to and from bytes.
+     *
+     * @param <T> the serialized type
+     */
+    public static interface Serializer<T> {
+
+        /**
+         * Writes value to out, starting at its writer index.
+         */
+        public void serialize(T value, ByteBuf out);
+
+        /**
+         * Reads a value from in, which contains exactly the bytes written by
+         * {@link #serialize(Object, ByteBuf)}.
+         */
+        public T deserialize(ByteBuf in);
+
+        public static final Serializer<byte[]> BYTES = new Serializer<byte[]>() {
+            @Override
+            public void serialize(byte[] value, ByteBuf out) {
+                out.writeBytes(value);
+            }
+
+            @Override
+            public byte[] deserialize(ByteBuf in) {
+                return ByteBufUtil.getBytes(in);
+            }
+        };
+
+        public static final Serializer<String> UTF8 = new Serializer<String>() {
+            @Override
+            public void serialize(String value, ByteBuf out) {
+                out.writeCharSequence(value, StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String deserialize(ByteBuf in) {
+                return in.toString(StandardCharsets.UTF_8);
+            }
+        };
+
+        public static final Serializer<Long> LONG = new Serializer<Long>() {
+            @Override
+            public void serialize(Long value, ByteBuf out) {
+                out.writeLong(value);
+            }
+
+            @Override
+            public Long deserialize(ByteBuf in) {
+                return in.getLong(in.readerIndex());
+            }
+        };
+    }
+}
@@ -0,0 +1,172 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies one DataRef into another in concurrently processed chunks.
+ *
+ * The source is cut up with {@link DataRef#split(long, int)} and every chunk
+ * is assigned to the corresponding range of the target on the executor, with
+ * at most {@code maxInFlight} chunks being copied at any time. File-to-file
+ * copies use positional transfers (see {@link RAFileRef}), so chunks of the
+ * same files don't interfere with each other.
+ *
+ * @author lkroll
+ */
+public class ParallelCopy {
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final Executor executor;
+    private final int chunkSize;
+    private final int maxInFlight;
+
+    public ParallelCopy() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param executor where to run the chunk copies
+     * @param chunkSize how many bytes to copy in a single task
+     * @param maxInFlight maximum number of chunks being copied concurrently
+     */
+    public ParallelCopy(Executor executor, int chunkSize, int maxInFlight) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Copies the whole source to target starting at offset and blocks until it's done.
+     *
+     * @param source data to copy
+     * @param target where to copy to
+     * @param offset index where the copy starts in target
+     * @return statistics of the completed copy
+     */
+    public Stats copy(DataRef source, DataRef target, long offset) {
+        return copy(source, target, offset, null);
+    }
+
+    /**
+     * Copies the whole source to target starting at offset and blocks until it's done.
+     *
+     * @param source data to copy
+     * @param target where to copy to
+     * @param offset index where the copy starts in target
+     * @param listener gets notified after every chunk (may be null)
+     * @return statistics of the completed copy
+     */
+    public Stats copy(DataRef source, final DataRef target, final long offset, final ProgressListener listener) {
+        final long total = source.size();
+        if ((offset < 0) || (offset + total > target.size())) {
+            throw new IndexOutOfBoundsException("Asked for offset " + offset + " and length " + total + " but target length is only " + target.size());
+        }
+        final long startTime = System.nanoTime();
+        final AtomicLong copied = new AtomicLong(0);
+        final AtomicReference<Throwable> error = new AtomicReference<>(null);
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        long pos = 0;
+        for (final DataRef chunk : source.split(J6.roundUp(total, (long) chunkSize), chunkSize)) {
+            final long chunkOffset = offset + pos;
+            pos += chunk.size();
+            if (error.get() != null) {
+                chunk.release();
+                continue; // don't bother anymore, but release everything
+            }
+            inFlight.acquireUninterruptibly();
+            try {
+                executor.execute(() -> {
+                    try {
+                        if (error.get() == null) {
+                            target.assign(chunkOffset, chunk);
+                            long done = copied.addAndGet(chunk.size());
+                            if (listener != null) {
+                                listener.progress(done, total, System.nanoTime() - startTime);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        chunk.release();
+                        inFlight.release();
+                    }
+                });
+            } catch (RuntimeException ex) { // e.g. RejectedExecutionException
+                chunk.release();
+                inFlight.release();
+                error.compareAndSet(null, ex);
+            }
+        }
+        inFlight.acquireUninterruptibly(maxInFlight); // wait for the stragglers
+        inFlight.release(maxInFlight);
+        Throwable t = error.get();
+        if (t != null) {
+            throw new RuntimeException("Copy failed after " + copied.get() + " of " + total + " bytes", t);
+        }
+        return new Stats(copied.get(), System.nanoTime() - startTime);
+    }
+
+    public static interface ProgressListener {
+
+        /**
+         * Called from the copying threads whenever a chunk is done.
+         *
+         * @param bytesCopied bytes copied so far
+         * @param totalBytes bytes to copy in total
+         * @param elapsedNanos time since the copy started
+         */
+        public void progress(long bytesCopied, long totalBytes, long elapsedNanos);
+    }
+
+    public static class Stats {
+
+        public final long bytes;
+        public final long nanos;
+
+        private Stats(long bytes, long nanos) {
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return average throughput in bytes per second
+         */
+        public double throughput() {
+            return ((double) bytes) / (((double) Math.max(nanos, 1L)) / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return "Stats(bytes=" + bytes + ", time=" + (nanos / 1000000) + "ms, throughput=" + (long) throughput() + "B/s)";
+        }
+    }
+}
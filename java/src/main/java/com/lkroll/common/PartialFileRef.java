@@ -19,13 +19,19 @@
 package com.lkroll.common;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.FileRegion;
+import java.nio.ByteOrder;
 import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
 
 /**
+ * A DataRef pointing to the range [begin, begin + length) of a {@link RAFileRef}.
+ *
+ * Like its parent, this is safe to use concurrently with other refs into the same file.
  *
  * @author lkroll
  */
-public class PartialFileRef implements DataRef {
+public class PartialFileRef implements AsyncDataRef {
 
     private final RAFileRef data;
     private final long begin;
@@ -42,6 +48,10 @@ public class PartialFileRef implements DataRef {
         return data;
     }
 
+    long begin() {
+        return begin;
+    }
+
     @Override
     public void retain() {
         data.retain();
@@ -91,6 +101,48 @@ public class PartialFileRef implements DataRef {
         data.assign(begin + start, newData);
     }
 
+    @Override
+    public short getShort(long index, ByteOrder order) {
+        checkBounds(index, Short.BYTES);
+        return data.getShort(begin + index, order);
+    }
+
+    @Override
+    public int getInt(long index, ByteOrder order) {
+        checkBounds(index, Integer.BYTES);
+        return data.getInt(begin + index, order);
+    }
+
+    @Override
+    public long getLong(long index, ByteOrder order) {
+        checkBounds(index, Long.BYTES);
+        return data.getLong(begin + index, order);
+    }
+
+    @Override
+    public void putShort(long index, short value, ByteOrder order) {
+        checkBounds(index, Short.BYTES);
+        data.putShort(begin + index, value, order);
+    }
+
+    @Override
+    public void putInt(long index, int value, ByteOrder order) {
+        checkBounds(index, Integer.BYTES);
+        data.putInt(begin + index, value, order);
+    }
+
+    @Override
+    public void putLong(long index, long value, ByteOrder order) {
+        checkBounds(index, Long.BYTES);
+        data.putLong(begin + index, value, order);
+    }
+
+    private void checkBounds(long index, int width) {
+        if ((index < 0) || (index + width > length)) {
+            throw new IndexOutOfBoundsException("Asked for " + width + " bytes at index " + index + " but length is only " + length);
+        }
+    }
+
     @Override
     public void copyTo(DataRef target, long offset) {
         data.copyTo(target, offset, begin, length);
@@ -112,6 +164,26 @@ public class PartialFileRef implements DataRef {
         data.copyTo(buffer, begin, (int)length);
     }
 
+    @Override
+    public CompletableFuture<byte[]> readAsync(long start, long end) {
+        return data.readAsync(start, end, begin, length);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(long start, byte[] newData) {
+        return data.writeAsync(start, newData, begin, length);
+    }
+
+    @Override
+    public CompletableFuture<Void> copyToAsync(ByteBuf buffer) {
+        return data.copyToAsync(buffer, begin, length);
+    }
+
+    @Override
+    public FileRegion toFileRegion() {
+        return new FileRefRegion(this, data.getChannel(), begin, length);
+    }
+
     @Override
     public Iterable<DataRef> split(long numberOfChunks, int chunkSize) {
         return new PFRIterator(chunkSize);
@@ -136,7 +208,7 @@ public class PartialFileRef implements DataRef {
         @Override
         public DataRef next() {
             int chunkLength = (int) Math.min((long) chunkSize, length - pos); // the smaller one must be int sized
-            PartialFileRef subarea = new PartialFileRef(pos, chunkLength, data);
+            PartialFileRef subarea = new PartialFileRef(begin + pos, chunkLength, data);
             pos += chunkLength;
             return subarea;
         }
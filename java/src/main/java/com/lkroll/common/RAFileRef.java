@@ -18,33 +18,71 @@
 */
 package com.lkroll.common;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.FileRegion;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * A DataRef where the underlying storage is a file.
+ *
+ * All I/O goes through positional {@link FileChannel} reads and writes, so the
+ * file pointer of the underlying {@link RandomAccessFile} is never used. That
+ * means a RAFileRef (and all {@link PartialFileRef}s split off from it) may be
+ * read and written concurrently from different threads.
+ *
+ * The {@link AsyncDataRef} operations use a separate
+ * {@link AsynchronousFileChannel} on the same file, which is opened on first
+ * use and closed together with the RandomAccessFile. The JDK can't create one
+ * from an open descriptor, so it is opened by the file's path: async
+ * operations fail on files that were deleted before the first one (such as
+ * temp files after {@link #markForDeletion()} on some platforms), and go to
+ * whatever file is at the path if the original was renamed in the meantime.
+ * The synchronous operations are not affected.
  *
  * @author lkroll
  */
-public class RAFileRef implements DataRef {
+public class RAFileRef implements AsyncDataRef {
+
+    static final int TRANSFER_CHUNK_SIZE = 64 * 1024;
+    // for primitive accessors, so they don't produce garbage
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Long.BYTES));
 
     private final RandomAccessFile raf;
+    private final FileChannel channel;
     private final File f;
     private AtomicLong rc = new AtomicLong(1);
     private boolean delete = false;
+    private volatile AsynchronousFileChannel asyncChannel = null;
+    private final LeakDetector.Tracker leak;
 
     public RAFileRef(File f, RandomAccessFile raf) {
         this.f = f;
         this.raf = raf;
+        this.channel = raf.getChannel();
+        this.leak = LeakDetector.track(this, "RAFileRef", f);
     }
 
     public RandomAccessFile getRAF() {
         return this.raf;
     }
 
+    public FileChannel getChannel() {
+        return this.channel;
+    }
+
     public File getFile() {
         return this.f;
     }
@@ -57,9 +95,8 @@ public class RAFileRef implements DataRef {
     @Override
     public byte[] dereference() {
         try {
-            byte[] data = new byte[(int) raf.length()];
-            raf.seek(0);
-            raf.read(data);
+            byte[] data = new byte[(int) channel.size()];
+            readFully(ByteBuffer.wrap(data), 0);
             return data;
         } catch (IOException ex) {
             throw new RuntimeException(ex);
@@ -69,11 +106,13 @@ public class RAFileRef implements DataRef {
     @Override
     public byte dereference(long i) {
         try {
-            if (i >= raf.length()) {
-                throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + raf.length());
+            long length = channel.size();
+            if ((i >= length) || (i < 0)) {
+                throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + length);
             }
-            raf.seek(i);
-            return raf.readByte();
+            ByteBuffer buf = ByteBuffer.allocate(1);
+            readFully(buf, i);
+            return buf.get(0);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -82,11 +121,12 @@ public class RAFileRef implements DataRef {
     @Override
     public byte[] dereference(long start, long end) {
         try {
-            if ((start >= raf.length()) || (start < 0)) {
-                throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + raf.length());
+            long length = channel.size();
+            if ((start >= length) || (start < 0)) {
+                throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length);
             }
-            if ((end > raf.length()) || (end < start)) {
-                throw new IndexOutOfBoundsException("Asked for end " + end + " but length is only " + raf.length() + " and start is" + start);
+            if ((end > length) || (end < start)) {
+                throw new IndexOutOfBoundsException("Asked for end " + end + " but length is only " + length + " and start is" + start);
             }
             long l = end - start;
             if (l > Integer.MAX_VALUE) {
@@ -94,8 +134,7 @@ public class RAFileRef implements DataRef {
             }
             int li = (int) l;
             byte[] data = new byte[li];
-            raf.seek(start);
-            raf.read(data);
+            readFully(ByteBuffer.wrap(data), start);
             return data;
         } catch (IOException ex) {
             throw new RuntimeException(ex);
@@ -105,11 +144,13 @@ public class RAFileRef implements DataRef {
     @Override
     public void assign(long i, byte val) {
         try {
-            if (i >= raf.length()) {
-                throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + raf.length());
+            long length = channel.size();
+            if ((i >= length) || (i < 0)) {
+                throw new IndexOutOfBoundsException("Asked for index " + i + " but length is only " + length);
             }
-            raf.seek(i);
-            raf.writeByte(val);
+            ByteBuffer buf = ByteBuffer.allocate(1);
+            buf.put(0, val);
+            writeFully(buf, i);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -118,15 +159,15 @@ public class RAFileRef implements DataRef {
     @Override
     public void assign(long start, byte[] newData) {
         try {
-            if ((start >= raf.length()) || (start < 0)) {
-                throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + raf.length());
+            long length = channel.size();
+            if ((start >= length) || (start < 0)) {
+                throw new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length);
             }
             long end = start + newData.length;
-            if ((end > raf.length())) {
-                throw new IndexOutOfBoundsException("Asked for length " + newData.length + " but length is only " + raf.length());
+            if ((end > length)) {
+                throw new IndexOutOfBoundsException("Asked for length " + newData.length + " but length is only " + length);
             }
-            raf.seek(start);
-            raf.write(newData);
+            writeFully(ByteBuffer.wrap(newData), start);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -135,16 +176,11 @@ public class RAFileRef implements DataRef {
     @Override
     public void assign(long start, DataRef newData) {
         if (newData instanceof RAFileRef) {
-            try {
-                RAFileRef src = (RAFileRef) newData;
-                raf.seek(start);
-                //src.raf.seek(0);
-                FileChannel sink = raf.getChannel();
-                FileChannel source = src.raf.getChannel();
-                source.transferTo(0, src.raf.length(), sink);
-            } catch (IOException ex) {
-                throw new RuntimeException(ex);
-            }
+            RAFileRef src = (RAFileRef) newData;
+            transfer(src.channel, 0, channel, start, src.size());
+        } else if (newData instanceof PartialFileRef) {
+            PartialFileRef src = (PartialFileRef) newData;
+            transfer(src.fileRef().channel, src.begin(), channel, start, src.size());
         } else {
             assign(start, newData.dereference());
         }
@@ -152,26 +188,99 @@ public class RAFileRef implements DataRef {
 
     @Override
     public void copyTo(DataRef target, long offset) {
+        copyTo(target, offset, 0, size());
+    }
+
+    @Override
+    public short getShort(long index, ByteOrder order) {
+        return readPrimitive(index, Short.BYTES, order).getShort(0);
+    }
+
+    @Override
+    public int getInt(long index, ByteOrder order) {
+        return readPrimitive(index, Integer.BYTES, order).getInt(0);
+    }
+
+    @Override
+    public long getLong(long index, ByteOrder order) {
+        return readPrimitive(index, Long.BYTES, order).getLong(0);
+    }
+
+    @Override
+    public void putShort(long index, short value, ByteOrder order) {
+        ByteBuffer buf = scratch(Short.BYTES, order);
+        buf.putShort(0, value);
+        writePrimitive(index, buf);
+    }
+
+    @Override
+    public void putInt(long index, int value, ByteOrder order) {
+        ByteBuffer buf = scratch(Integer.BYTES, order);
+        buf.putInt(0, value);
+        writePrimitive(index, buf);
+    }
+
+    @Override
+    public void putLong(long index, long value, ByteOrder order) {
+        ByteBuffer buf = scratch(Long.BYTES, order);
+        buf.putLong(0, value);
+        writePrimitive(index, buf);
+    }
+
+    private static ByteBuffer scratch(int width, ByteOrder order) {
+        ByteBuffer buf = SCRATCH.get();
+        buf.clear();
+        buf.limit(width);
+        buf.order(order);
+        return buf;
+    }
 
+    private ByteBuffer readPrimitive(long index, int width, ByteOrder order) {
+        try {
+            long length = channel.size();
+            if ((index < 0) || (index + width > length)) {
+                throw new IndexOutOfBoundsException("Asked for " + width + " bytes at index " + index + " but length is only " + length);
+            }
+            ByteBuffer buf = scratch(width, order);
+            readFully(buf, index);
+            return buf;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void writePrimitive(long index, ByteBuffer buf) {
+        try {
+            long length = channel.size();
+            if ((index < 0) || (index + buf.limit() > length)) {
+                throw new IndexOutOfBoundsException("Asked for " + buf.limit() + " bytes at index " + index + " but length is only " + length);
+            }
+            writeFully(buf, index);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
     }
 
     void copyTo(DataRef target, long offset, long start, long length) {
         if (target instanceof RAFileRef) {
-            try {
-                RAFileRef tgt = (RAFileRef) target;
-                //tgt.raf.seek(offset);
-                raf.seek(start);
-                FileChannel sink = tgt.raf.getChannel();
-                FileChannel source = raf.getChannel();
-                source.transferTo(offset, length, sink);
-            } catch (IOException ex) {
-                throw new RuntimeException(ex);
+            RAFileRef tgt = (RAFileRef) target;
+            transfer(channel, start, tgt.channel, offset, length);
+        } else if (target instanceof PartialFileRef) {
+            PartialFileRef tgt = (PartialFileRef) target;
+            if (offset + length > tgt.size()) {
+                throw new IndexOutOfBoundsException("Asked for offset " + offset + " and length " + length + " but target length is only " + tgt.size());
             }
+            transfer(channel, start, tgt.fileRef().channel, tgt.begin() + offset, length);
         } else {
-            if (offset > Integer.MAX_VALUE) {
-                throw new IndexOutOfBoundsException("offset doesn't fit into an integer: " + offset);
+            // go in bounded chunks, so we never materialise all of the data at once
+            long pos = 0;
+            while (pos < length) {
+                int l = (int) Math.min((long) TRANSFER_CHUNK_SIZE, length - pos);
+                byte[] chunk = new byte[l];
+                copyTo(chunk, 0, start + pos, l);
+                target.assign(offset + pos, chunk);
+                pos += l;
             }
-            copyTo(target.dereference(), (int) offset);
         }
     }
 
@@ -180,8 +289,7 @@ public class RAFileRef implements DataRef {
             if ((offset >= target.length) || (offset < 0)) {
                 throw new IndexOutOfBoundsException("Asked for offset " + offset + " but length is only " + target.length);
             }
-            raf.seek(start);
-            raf.read(target, offset, length);
+            readFully(ByteBuffer.wrap(target, offset, length), start);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -200,7 +308,7 @@ public class RAFileRef implements DataRef {
     @Override
     public long size() {
         try {
-            return raf.length();
+            return channel.size();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
@@ -209,13 +317,25 @@ public class RAFileRef implements DataRef {
     @Override
     public void retain() {
         rc.incrementAndGet();
+        if (leak != null) {
+            leak.record();
+        }
     }
 
     @Override
     public void release() {
+        if (leak != null) {
+            leak.record();
+        }
         if (rc.decrementAndGet() == 0) {
+            if (leak != null) {
+                leak.close();
+            }
             try {
                 raf.close();
+                if (asyncChannel != null) {
+                    asyncChannel.close();
+                }
                 if (delete) {
                     f.delete();
                 }
@@ -243,34 +363,231 @@ public class RAFileRef implements DataRef {
 
     void copyTo(io.netty.buffer.ByteBuf buffer, long start, int length) {
         try {
-            int written = -1;
-            int startx = buffer.writerIndex();
-            /* Note: there's a weird bug here, causing the buffer to sometimes
-            * read nothing, although there's enough to read.
-            * As a workaround: Keep trying until we get the desired amount of data
+            /* Note: A single read may return less than was asked for
+            * (that was the "weird bug" that required a retry loop before).
+            * So keep reading positionally until we got everything.
             */
-            while (written < length) { 
-                raf.seek(start);
-                buffer.writerIndex(startx);
-                FileChannel source = raf.getChannel();
-                written = buffer.writeBytes(source, length);
-//            if (written != length) {
-//                System.err.println("Read from " + raf + " of size " + raf.length() 
-//                        + " starting at " + start + " leaving " + (raf.length()-start) 
-//                        + " to read " + length);
-//                throw new RuntimeException("Buffer didn't write required bytes!");
-//            }
+            int written = 0;
+            while (written < length) {
+                int n = buffer.writeBytes(channel, start + written, length - written);
+                if (n < 0) {
+                    throw new EOFException("Reached end of " + f + " at " + (start + written) + " before reading " + length + " bytes");
+                }
+                written += n;
             }
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
+    @Override
+    public FileRegion toFileRegion() {
+        return new FileRefRegion(this, channel, 0, size());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readAsync(long start, long end) {
+        return readAsync(start, end, 0, size());
+    }
+
+    CompletableFuture<byte[]> readAsync(long start, long end, long begin, long length) {
+        if ((start >= length) || (start < 0)) {
+            return failed(new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length));
+        }
+        if ((end > length) || (end < start)) {
+            return failed(new IndexOutOfBoundsException("Asked for end " + end + " but length is only " + length + " and start is" + start));
+        }
+        long l = end - start;
+        if (l > Integer.MAX_VALUE) {
+            return failed(new IndexOutOfBoundsException("Range doesn't fit into an integer: " + l));
+        }
+        final byte[] data = new byte[(int) l];
+        return transferAsync(ByteBuffer.wrap(data), begin + start, false).thenApply(v -> data);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(long start, byte[] newData) {
+        return writeAsync(start, newData, 0, size());
+    }
+
+    CompletableFuture<Void> writeAsync(long start, byte[] newData, long begin, long length) {
+        if ((start >= length) || (start < 0)) {
+            return failed(new IndexOutOfBoundsException("Asked for start " + start + " but length is only " + length));
+        }
+        if (start + newData.length > length) {
+            return failed(new IndexOutOfBoundsException("Asked for length " + newData.length + " but length is only " + length));
+        }
+        return transferAsync(ByteBuffer.wrap(newData), begin + start, true);
+    }
+
+    @Override
+    public CompletableFuture<Void> copyToAsync(ByteBuf buffer) {
+        return copyToAsync(buffer, 0, size());
+    }
+
+    CompletableFuture<Void> copyToAsync(final ByteBuf buffer, long start, long length) {
+        if (length > Integer.MAX_VALUE) {
+            return failed(new IndexOutOfBoundsException("length doesn't fit into an integer: " + length));
+        }
+        final int l = (int) length;
+        buffer.ensureWritable(l);
+        final int writerIndex = buffer.writerIndex();
+        if (buffer.nioBufferCount() == 1) {
+            // read straight into the buffer's memory
+            ByteBuffer target = buffer.nioBuffer(writerIndex, l);
+            return transferAsync(target, start, false).thenRun(() -> buffer.writerIndex(writerIndex + l));
+        } else {
+            final ByteBuffer target = ByteBuffer.allocate(l);
+            return transferAsync(target, start, false).thenRun(() -> {
+                target.flip();
+                buffer.setBytes(writerIndex, target);
+                buffer.writerIndex(writerIndex + l);
+            });
+        }
+    }
+
+    private AsynchronousFileChannel asyncChannel() throws IOException {
+        AsynchronousFileChannel ac = asyncChannel;
+        if (ac == null) {
+            synchronized (this) {
+                ac = asyncChannel;
+                if (ac == null) {
+                    try {
+                        ac = AsynchronousFileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    } catch (AccessDeniedException ex) {
+                        ac = AsynchronousFileChannel.open(f.toPath(), StandardOpenOption.READ);
+                    }
+                    asyncChannel = ac;
+                }
+            }
+        }
+        return ac;
+    }
+
+    /**
+     * Reads into (or writes from) buf at position until buf has no remaining bytes.
+     *
+     * Keeps this ref retained while the operation is ongoing.
+     */
+    private CompletableFuture<Void> transferAsync(final ByteBuffer buf, final long position, final boolean write) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final AsynchronousFileChannel ac;
+        try {
+            ac = asyncChannel();
+        } catch (IOException ex) {
+            future.completeExceptionally(ex);
+            return future;
+        }
+        retain();
+        new Transfer(ac, buf, write, future).start(position);
+        return future;
+    }
+
+    /**
+     * Issues reads or writes until the buffer is done, releasing this ref
+     * when it is (or when anything fails).
+     */
+    private final class Transfer implements CompletionHandler<Integer, Long> {
+
+        private final AsynchronousFileChannel ac;
+        private final ByteBuffer buf;
+        private final boolean write;
+        private final CompletableFuture<Void> future;
+
+        private Transfer(AsynchronousFileChannel ac, ByteBuffer buf, boolean write, CompletableFuture<Void> future) {
+            this.ac = ac;
+            this.buf = buf;
+            this.write = write;
+            this.future = future;
+        }
+
+        private void start(long pos) {
+            try {
+                if (write) {
+                    ac.write(buf, pos, pos, this);
+                } else {
+                    ac.read(buf, pos, pos, this);
+                }
+            } catch (Throwable t) {
+                // e.g. NonWritableChannelException if we could only open the file for reading
+                failed(t, pos);
+            }
+        }
+
+        @Override
+        public void completed(Integer n, Long pos) {
+            if (n < 0) {
+                failed(new EOFException("Reached end of " + f + " at " + pos + " with " + buf.remaining() + " bytes left to read"), pos);
+            } else if (buf.hasRemaining()) {
+                start(pos + n);
+            } else {
+                release();
+                future.complete(null);
+            }
+        }
+
+        @Override
+        public void failed(Throwable ex, Long pos) {
+            release();
+            future.completeExceptionally(ex);
+        }
+    }
+
+    static <T> CompletableFuture<T> failed(Throwable ex) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(ex);
+        return future;
+    }
+
     @Override
     public Iterable<DataRef> split(long numberOfChunks, int chunkSize) {
         return new RAFRIterator(chunkSize);
     }
 
+    private void readFully(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                throw new EOFException("Reached end of " + f + " at " + position + " with " + dst.remaining() + " bytes left to read");
+            }
+            position += n;
+        }
+    }
+
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /**
+     * Copies length bytes from source at sourcePosition to sink at
+     * sinkPosition, without touching either channel's position.
+     */
+    static void transfer(FileChannel source, long sourcePosition, FileChannel sink, long sinkPosition, long length) {
+        try {
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min((long) TRANSFER_CHUNK_SIZE, Math.max(length, 1L)));
+            long done = 0;
+            while (done < length) {
+                buf.clear();
+                buf.limit((int) Math.min((long) buf.capacity(), length - done));
+                while (buf.hasRemaining()) {
+                    int n = source.read(buf, sourcePosition + done + buf.position());
+                    if (n < 0) {
+                        throw new EOFException("Reached end of source at " + (sourcePosition + done + buf.position()));
+                    }
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    sink.write(buf, sinkPosition + done + buf.position());
+                }
+                done += buf.limit();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
     public class RAFRIterator implements Iterator<DataRef>, Iterable<DataRef> {
 
         public long pos = 0;
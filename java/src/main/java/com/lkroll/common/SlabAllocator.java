@@ -0,0 +1,198 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out {@link ByteArrayRef}s carved from large, reused byte[] slabs.
+ *
+ * Every thread bump-allocates from its own current slab, so allocation needs
+ * no synchronisation. The refs handed out have a real reference count: once
+ * every ref carved from a (full) slab has been released, the whole slab goes
+ * back into a bounded pool and is reused for later allocations.
+ *
+ * This means the content of a released ref may be overwritten at any time, so
+ * neither the ref nor views of it (e.g. from split) must be used after the
+ * final release. Allocated refs are not zeroed.
+ *
+ * Requests larger than {@code maxAllocation} are served with plain arrays.
+ *
+ * @author lkroll
+ */
+public class SlabAllocator {
+
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_POOLED_SLABS = 64;
+
+    private final int slabSize;
+    private final int maxAllocation;
+    private final int maxPooledSlabs;
+    private final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+    private final ThreadLocal<Slab> current = new ThreadLocal<>();
+    private final AtomicLong slabsCreated = new AtomicLong(0);
+    private final AtomicLong slabsReused = new AtomicLong(0);
+
+    public SlabAllocator() {
+        this(DEFAULT_SLAB_SIZE, DEFAULT_SLAB_SIZE / 8, DEFAULT_MAX_POOLED_SLABS);
+    }
+
+    /**
+     * @param slabSize size of each backing array
+     * @param maxAllocation largest request to serve from a slab
+     * @param maxPooledSlabs how many free slabs to keep for reuse
+     */
+    public SlabAllocator(int slabSize, int maxAllocation, int maxPooledSlabs) {
+        if ((maxAllocation <= 0) || (maxAllocation > slabSize)) {
+            throw new IllegalArgumentException("maxAllocation must be in (0, slabSize]: " + maxAllocation);
+        }
+        this.slabSize = slabSize;
+        this.maxAllocation = maxAllocation;
+        this.maxPooledSlabs = maxPooledSlabs;
+    }
+
+    /**
+     * Allocates a ref of length bytes with undefined content.
+     *
+     * @param length size of the ref
+     * @return a new ref with a reference count of 1
+     */
+    public ByteArrayRef allocate(int length) {
+        if (length > maxAllocation) {
+            return ByteArrayRef.wrap(new byte[length]);
+        }
+        Slab slab = current.get();
+        if ((slab == null) || (slab.remaining() < length)) {
+            if (slab != null) {
+                slab.retire();
+            }
+            slab = new Slab(takeArray());
+            current.set(slab);
+        }
+        return slab.carve(length);
+    }
+
+    /**
+     * Allocates a ref holding a copy of data[offset, offset + length).
+     *
+     * @param data source array
+     * @param offset index of the first byte to copy
+     * @param length number of bytes to copy
+     * @return a new ref with a reference count of 1
+     */
+    public ByteArrayRef copyOf(byte[] data, int offset, int length) {
+        ByteArrayRef ref = allocate(length);
+        System.arraycopy(data, offset, ref.getBackingArray(), ref.begin, length);
+        return ref;
+    }
+
+    public long slabsCreated() {
+        return slabsCreated.get();
+    }
+
+    public long slabsReused() {
+        return slabsReused.get();
+    }
+
+    public int pooledSlabs() {
+        return pooled.get();
+    }
+
+    private byte[] takeArray() {
+        byte[] array = pool.poll();
+        if (array != null) {
+            pooled.decrementAndGet();
+            slabsReused.incrementAndGet();
+            return array;
+        }
+        slabsCreated.incrementAndGet();
+        return new byte[slabSize];
+    }
+
+    private void giveBack(byte[] array) {
+        if (pooled.incrementAndGet() <= maxPooledSlabs) {
+            pool.offer(array);
+        } else {
+            pooled.decrementAndGet(); // leave it to the GC
+        }
+    }
+
+    private final class Slab {
+
+        private final byte[] data;
+        private int offset = 0; // only touched by the owning thread
+        // one per live ref, plus one while this is still the thread's current slab
+        private final AtomicInteger liveRefs = new AtomicInteger(1);
+
+        private Slab(byte[] data) {
+            this.data = data;
+        }
+
+        private int remaining() {
+            return data.length - offset;
+        }
+
+        private SlabRef carve(int length) {
+            liveRefs.incrementAndGet();
+            SlabRef ref = new SlabRef(offset, length, this);
+            offset += length;
+            return ref;
+        }
+
+        private void retire() {
+            refReleased();
+        }
+
+        private void refReleased() {
+            if (liveRefs.decrementAndGet() == 0) {
+                giveBack(data);
+            }
+        }
+    }
+
+    private static final class SlabRef extends ByteArrayRef {
+
+        private final Slab slab;
+        private final AtomicInteger rc = new AtomicInteger(1);
+
+        private SlabRef(int begin, int length, Slab slab) {
+            super(begin, length, slab.data);
+            this.slab = slab;
+        }
+
+        @Override
+        public void retain() {
+            rc.incrementAndGet();
+        }
+
+        @Override
+        public void release() {
+            int count = rc.decrementAndGet();
+            if (count == 0) {
+                slab.refReleased();
+            }
+            if (count < 0) {
+                throw new IllegalStateException("Object was already deallocated: " + this);
+            }
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Builds a DataRef of unknown size from appended pieces, that starts out on
+ * the heap and spills over into a temporary file if it gets too big.
+ *
+ * Data stays in memory as long as it's below the threshold and the
+ * {@link MemoryBudget} (shared by default between all spilling refs) allows it.
+ * Once either is exceeded, everything is moved to a temp file and all further
+ * appends go straight to disk.
+ *
+ * {@link #build()} produces either a {@link ByteArrayRef} (whose release
+ * returns the memory to the budget) or a {@link RAFileRef} marked for deletion.
+ * Either way the caller owns one reference to it. Chunks split off the
+ * in-memory ref retain it until they are released. If it is garbage collected
+ * without its last release, the leak is logged and the memory is returned
+ * to the budget the next time a reservation doesn't fit.
+ *
+ * Not thread-safe.
+ *
+ * @author lkroll
+ */
+public class SpillingDataRef {
+
+    public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+    /**
+     * The budget shared by all spilling refs that are not given their own.
+     */
+    public static final MemoryBudget GLOBAL_BUDGET = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final Logger LOG = Logger.getLogger(SpillingDataRef.class.getName());
+    // reservations of built in-memory refs that are still outstanding
+    private static final Set<Reservation> RESERVATIONS = ConcurrentHashMap.newKeySet();
+    private static final ReferenceQueue<Object> DROPPED = new ReferenceQueue<>();
+
+    private final int threshold;
+    private final MemoryBudget budget;
+    private final File tempDir;
+    // in memory
+    private byte[] buffer = null;
+    private long reserved = 0;
+    // on disk
+    private File file = null;
+    private RandomAccessFile raf = null;
+    private FileChannel channel = null;
+    // either
+    private long size = 0;
+    private boolean built = false;
+
+    public SpillingDataRef() {
+        this(DEFAULT_THRESHOLD, GLOBAL_BUDGET, null);
+    }
+
+    /**
+     * @param threshold maximum number of bytes to keep in memory
+     * @param budget memory accounting shared with other buffers
+     * @param tempDir where to create the spill file (null for the default temp dir)
+     */
+    public SpillingDataRef(int threshold, MemoryBudget budget, File tempDir) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold must not be negative: " + threshold);
+        }
+        this.threshold = threshold;
+        this.budget = budget;
+        this.tempDir = tempDir;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isSpilled() {
+        return channel != null;
+    }
+
+    public SpillingDataRef append(byte[] data) {
+        return append(data, 0, data.length);
+    }
+
+    public SpillingDataRef append(byte[] data, int offset, int length) {
+        checkNotBuilt();
+        if (ensureInMemory(length)) {
+            System.arraycopy(data, offset, buffer, (int) size, length);
+        } else {
+            write(ByteBuffer.wrap(data, offset, length));
+        }
+        size += length;
+        return this;
+    }
+
+    /**
+     * Appends a copy of data (the caller keeps its reference).
+     *
+     * @param data what to append
+     * @return this
+     */
+    public SpillingDataRef append(DataRef data) {
+        checkNotBuilt();
+        long length = data.size();
+        if (length == 0) {
+            return this;
+        }
+        if ((length <= Integer.MAX_VALUE) && ensureInMemory((int) length)) {
+            data.copyTo(ByteArrayRef.wrap(buffer), size);
+            size += length;
+            return this;
+        }
+        if (channel == null) {
+            spill();
+        }
+        if (data instanceof RAFileRef) {
+            RAFileRef.transfer(((RAFileRef) data).getChannel(), 0, channel, size, length);
+        } else if (data instanceof PartialFileRef) {
+            PartialFileRef pfr = (PartialFileRef) data;
+            RAFileRef.transfer(pfr.fileRef().getChannel(), pfr.begin(), channel, size, length);
+        } else {
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min((long) RAFileRef.TRANSFER_CHUNK_SIZE, length));
+            try (SeekableByteChannel in = data.openReadChannel(0)) {
+                while (in.read(buf) >= 0) {
+                    buf.flip();
+                    write(buf);
+                    buf.clear();
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        size += length;
+        return this;
+    }
+
+    /**
+     * Finishes the builder.
+     *
+     * @return the appended data
+     */
+    public DataRef build() {
+        checkNotBuilt();
+        built = true;
+        if (channel != null) {
+            RAFileRef ref = new RAFileRef(file, raf);
+            ref.markForDeletion();
+            return ref;
+        }
+        if (buffer == null) {
+            return ByteArrayRef.wrap(new byte[0]);
+        }
+        long bytes = reserved;
+        reserved = 0;
+        return new BudgetedByteArrayRef((int) size, buffer, budget, bytes);
+    }
+
+    /**
+     * Drops everything appended so far without building.
+     */
+    public void discard() {
+        if (built) {
+            return;
+        }
+        built = true;
+        buffer = null;
+        budget.release(reserved);
+        reserved = 0;
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    private void checkNotBuilt() {
+        if (built) {
+            throw new IllegalStateException("Builder was already finished!");
+        }
+    }
+
+    /**
+     * Makes room for length more bytes in memory, or spills if that's not possible.
+     *
+     * @return true if the data should go into the buffer
+     */
+    private boolean ensureInMemory(int length) {
+        if (channel != null) {
+            return false;
+        }
+        long needed = size + length;
+        if (needed > threshold) {
+            spill();
+            return false;
+        }
+        int capacity = (buffer == null) ? 0 : buffer.length;
+        if (needed <= capacity) {
+            return true;
+        }
+        int newCapacity = (int) Math.min((long) threshold, Math.max(needed, Math.max(INITIAL_CAPACITY, 2L * capacity)));
+        if (!budget.tryReserve(newCapacity - capacity)
+                && !((reclaimDropped() > 0) && budget.tryReserve(newCapacity - capacity))) {
+            spill();
+            return false;
+        }
+        reserved += newCapacity - capacity;
+        byte[] newBuffer = new byte[newCapacity];
+        if (buffer != null) {
+            System.arraycopy(buffer, 0, newBuffer, 0, (int) size);
+        }
+        buffer = newBuffer;
+        return true;
+    }
+
+    /**
+     * Moves the buffered data into a new temp file.
+     *
+     * If that fails the data stays in memory and the partial file is removed,
+     * so the builder can still be built or discarded.
+     */
+    private void spill() {
+        try {
+            file = File.createTempFile("spill", ".data", tempDir);
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            if (size > 0) {
+                write(ByteBuffer.wrap(buffer, 0, (int) size), 0);
+            }
+        } catch (IOException | RuntimeException ex) {
+            abortSpill(ex);
+            if (ex instanceof RuntimeException) {
+                throw (RuntimeException) ex;
+            }
+            throw new RuntimeException(ex);
+        }
+        buffer = null;
+        budget.release(reserved);
+        reserved = 0;
+    }
+
+    private void abortSpill(Exception cause) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                cause.addSuppressed(ex);
+            }
+        }
+        if (file != null) {
+            file.delete();
+        }
+        file = null;
+        raf = null;
+        channel = null;
+    }
+
+    private void write(ByteBuffer data) {
+        write(data, size);
+    }
+
+    private void write(ByteBuffer data, long position) {
+        try {
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Returns the reservations of in-memory refs that were garbage collected
+     * without their last release to their budgets.
+     *
+     * @return the number of such refs found
+     */
+    public static int reclaimDropped() {
+        int dropped = 0;
+        Reservation r;
+        while ((r = (Reservation) DROPPED.poll()) != null) {
+            if (r.giveBack()) {
+                dropped++;
+                LOG.warning("LEAK: an in-memory SpillingDataRef holding " + r.reserved
+                        + " bytes was garbage collected before its last release(), returning them to the budget.");
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * A budget reservation that can be given back once, either on the final
+     * release of its ref or after the ref was garbage collected.
+     */
+    private static final class Reservation extends PhantomReference<Object> {
+
+        private final MemoryBudget budget;
+        private final long reserved;
+
+        private Reservation(Object ref, MemoryBudget budget, long reserved) {
+            super(ref, DROPPED);
+            this.budget = budget;
+            this.reserved = reserved;
+            RESERVATIONS.add(this);
+        }
+
+        private boolean giveBack() {
+            if (RESERVATIONS.remove(this)) {
+                clear();
+                budget.release(reserved);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A ByteArrayRef that hands its reservation back to the budget on final release.
+     */
+    private static class BudgetedByteArrayRef extends ByteArrayRef {
+
+        private final Reservation reservation;
+        private final LeakDetector.Tracker leak;
+        private final AtomicLong rc = new AtomicLong(1);
+
+        private BudgetedByteArrayRef(int length, byte[] backingArray, MemoryBudget budget, long reserved) {
+            super(0, length, backingArray);
+            this.reservation = new Reservation(this, budget, reserved);
+            this.leak = LeakDetector.track(this, "SpillingDataRef buffer");
+        }
+
+        @Override
+        public Iterable<DataRef> split(long numberOfChunks, int chunkSize) {
+            return views(begin, length, this, chunkSize);
+        }
+
+        @Override
+        public void retain() {
+            if (leak != null) {
+                leak.record();
+            }
+            rc.incrementAndGet();
+        }
+
+        @Override
+        public void release() {
+            if (leak != null) {
+                leak.record();
+            }
+            long count = rc.decrementAndGet();
+            if (count == 0) {
+                if (leak != null) {
+                    leak.close();
+                }
+                reservation.giveBack();
+            }
+            if (count < 0) {
+                throw new IllegalStateException("Object was already deallocated: " + this);
+            }
+        }
+    }
+
+    /**
+     * Splits [begin, begin + length) of parent's array into chunks that each
+     * retain parent until they are released.
+     */
+    private static Iterable<DataRef> views(int begin, int length, BudgetedByteArrayRef parent, int chunkSize) {
+        ByteArrayRef area = new ByteArrayRef(begin, length, parent.getBackingArray());
+        return () -> new Iterator<DataRef>() {
+            private final Iterator<DataRef> chunks = area.split(0, chunkSize).iterator();
+
+            @Override
+            public boolean hasNext() {
+                return chunks.hasNext();
+            }
+
+            @Override
+            public DataRef next() {
+                ByteArrayRef chunk = (ByteArrayRef) chunks.next();
+                return new View(chunk.begin, (int) chunk.size(), parent);
+            }
+        };
+    }
+
+    /**
+     * A part of a BudgetedByteArrayRef, which keeps its parent's memory reserved.
+     */
+    private static class View extends ByteArrayRef {
+
+        private final BudgetedByteArrayRef parent;
+
+        private View(int begin, int length, BudgetedByteArrayRef parent) {
+            super(begin, length, parent.getBackingArray());
+            this.parent = parent;
+            parent.retain();
+        }
+
+        @Override
+        public Iterable<DataRef> split(long numberOfChunks, int chunkSize) {
+            return views(begin, length, parent, chunkSize);
+        }
+
+        @Override
+        public void retain() {
+            parent.retain();
+        }
+
+        @Override
+        public void release() {
+            parent.release();
+        }
+    }
+}
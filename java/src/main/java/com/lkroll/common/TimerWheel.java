@@ -0,0 +1,216 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timer wheel for scheduling large numbers of deadlines with
+ * O(1) insertion and removal and amortised O(1) expiry.
+ *
+ * There are {@link #LEVELS} wheels of 64 buckets each. The buckets of the
+ * lowest level are about a millisecond (2^20ns) wide, and each level's
+ * buckets are 64 times wider than the previous level's, so the levels span
+ * roughly 67ms, 4.3s, 4.6min, 4.9h and 13 days. A timer is placed on the
+ * lowest level whose span covers its delay. When time advances past a
+ * bucket, its timers either fire or, if their deadline is still to come,
+ * cascade down to a finer level.
+ *
+ * Times are in nanoseconds and must be non-negative and non-decreasing, so
+ * callers should pass times relative to some origin. Not thread-safe.
+ *
+ * @author lkroll
+ * @param <T> the payload of the timers
+ */
+public class TimerWheel<T> {
+
+    public static final int LEVELS = 5;
+    private static final int BUCKETS = 64;
+    private static final int BASE_SHIFT = 20;
+    private static final int LEVEL_SHIFT = 6;
+
+    private final Timer<T>[][] wheels;
+    private long currentTime;
+    private int size = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimerWheel(long startTime) {
+        this.currentTime = startTime;
+        this.wheels = new Timer[LEVELS][BUCKETS];
+        for (int i = 0; i < LEVELS; i++) {
+            for (int j = 0; j < BUCKETS; j++) {
+                wheels[i][j] = new Timer<>(null, 0); // sentinel
+            }
+        }
+    }
+
+    /**
+     * @return the number of scheduled timers
+     */
+    public int size() {
+        return size;
+    }
+
+    public long currentTime() {
+        return currentTime;
+    }
+
+    /**
+     * Schedules a new timer.
+     *
+     * @param value the payload that is handed back when the timer fires
+     * @param deadline the time at which the timer should fire
+     * @return the timer, for later {@link #reschedule(Timer, long)} or {@link #deschedule(Timer)}
+     */
+    public Timer<T> schedule(T value, long deadline) {
+        Timer<T> timer = new Timer<>(value, deadline);
+        link(timer);
+        size++;
+        return timer;
+    }
+
+    public void reschedule(Timer<T> timer, long deadline) {
+        if (!timer.isScheduled()) {
+            throw new IllegalStateException("Timer is not scheduled: " + timer.value);
+        }
+        timer.unlink();
+        timer.deadline = deadline;
+        link(timer);
+    }
+
+    public void deschedule(Timer<T> timer) {
+        if (timer.isScheduled()) {
+            timer.unlink();
+            size--;
+        }
+    }
+
+    /**
+     * Removes all timers without firing them.
+     *
+     * The removed timers must not be used anymore afterwards.
+     */
+    public void clear() {
+        for (Timer<T>[] wheel : wheels) {
+            for (Timer<T> head : wheel) {
+                head.prev = head;
+                head.next = head;
+            }
+        }
+        size = 0;
+    }
+
+    /**
+     * Moves the wheel to time now and fires all timers whose deadline has passed.
+     *
+     * @param now the new current time
+     * @param expired is called with each fired timer's payload, after the timer has been removed
+     */
+    public void advance(long now, Consumer<T> expired) {
+        long previous = currentTime;
+        if (now < previous) {
+            return;
+        }
+        currentTime = now;
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = shift(level);
+            long previousTicks = previous >>> shift;
+            long currentTicks = now >>> shift;
+            if ((level > 0) && (previousTicks == currentTicks)) {
+                break; // coarser levels didn't move either
+            }
+            long delta = Math.min(currentTicks - previousTicks, BUCKETS - 1);
+            // including the bucket we were in, which may hold timers that became due since
+            // (on the lowest level that is even the case when we didn't move to a new bucket)
+            for (long ticks = currentTicks - delta; ticks <= currentTicks; ticks++) {
+                expire(wheels[level][(int) (ticks & (BUCKETS - 1))], now, expired);
+            }
+        }
+    }
+
+    private void expire(Timer<T> head, long now, Consumer<T> expired) {
+        Timer<T> timer = head.next;
+        head.prev = head;
+        head.next = head;
+        while (timer != head) {
+            Timer<T> next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            if ((timer.deadline - now) <= 0) {
+                size--;
+                expired.accept(timer.value);
+            } else {
+                link(timer);
+            }
+            timer = next;
+        }
+    }
+
+    private void link(Timer<T> timer) {
+        long delay = Math.max(0L, timer.deadline - currentTime);
+        int level = 0;
+        while ((level < LEVELS - 1) && (delay >= (((long) BUCKETS) << shift(level)))) {
+            level++;
+        }
+        long ticks = Math.max(timer.deadline, currentTime) >>> shift(level);
+        Timer<T> head = wheels[level][(int) (ticks & (BUCKETS - 1))];
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+
+    private static int shift(int level) {
+        return BASE_SHIFT + (level * LEVEL_SHIFT);
+    }
+
+    public static final class Timer<T> {
+
+        private final T value;
+        private long deadline;
+        private Timer<T> prev;
+        private Timer<T> next;
+
+        private Timer(T value, long deadline) {
+            this.value = value;
+            this.deadline = deadline;
+            this.prev = this;
+            this.next = this;
+        }
+
+        public T value() {
+            return value;
+        }
+
+        public long deadline() {
+            return deadline;
+        }
+
+        private boolean isScheduled() {
+            return next != null;
+        }
+
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A fixed capacity cache with a W-TinyLFU admission policy.
+ *
+ * New entries go into a small LRU admission window (1% of the capacity).
+ * Entries falling out of the window compete with the least recently used
+ * entry of the main area for a place in it, and only the one that was
+ * accessed more often recently (according to a {@link FrequencySketch}) is
+ * kept. The main area is a segmented LRU, where entries that were hit while
+ * on probation are promoted to a protected segment (80% of the main area).
+ *
+ * Compared to {@link LRUCache} this keeps the frequently used entries in the
+ * cache when it is flooded with entries that are only used once, such as
+ * during a scan.
+ *
+ * Evicted entries, be it from the main area or rejected candidates from the
+ * window, are passed to the {@link LRUCache.EvictionHandler}.
+ *
+ * Not thread-safe.
+ *
+ * @author lkroll
+ * @param <K> Key
+ * @param <V> Value
+ */
+public class TinyLFUCache<K, V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final int cap;
+    private final int windowMax;
+    private final int protectedMax;
+    private final LRUCache.EvictionHandler<K, V> evicH;
+    private final FrequencySketch sketch;
+    private final HashMap<K, Node<K, V>> data;
+    // sentinels of circular lists with the eldest entry at head.next
+    private final Node<K, V> window = new Node<>(null, null, WINDOW);
+    private final Node<K, V> probation = new Node<>(null, null, PROBATION);
+    private final Node<K, V> protect = new Node<>(null, null, PROTECTED);
+    private int windowSize = 0;
+    private int protectedSize = 0;
+    private CacheStats stats = null;
+
+    public TinyLFUCache(int capacity, LRUCache.EvictionHandler<K, V> evictionHandler) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.cap = capacity;
+        this.windowMax = Math.max(1, capacity / 100);
+        this.protectedMax = (int) ((capacity - windowMax) * 0.8);
+        this.evicH = evictionHandler;
+        this.sketch = new FrequencySketch(capacity);
+        this.data = new HashMap<>();
+    }
+
+    public TinyLFUCache(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Records hits and misses of {@link #get(Object)} and evictions into stats.
+     */
+    public TinyLFUCache<K, V> recordStats(CacheStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    public V get(K key) {
+        sketch.increment(key);
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            if (stats != null) {
+                stats.recordMiss();
+            }
+            return null;
+        }
+        if (stats != null) {
+            stats.recordHit();
+        }
+        onHit(node);
+        return node.value;
+    }
+
+    public boolean containsKey(K key) {
+        return data.containsKey(key);
+    }
+
+    /**
+     * @return the previous value for key, or null
+     */
+    public V put(K key, V value) {
+        Node<K, V> node = data.get(key);
+        if (node != null) {
+            sketch.increment(key);
+            V old = node.value;
+            node.value = value;
+            onHit(node);
+            return old;
+        }
+        sketch.increment(key);
+        node = new Node<>(key, value, WINDOW);
+        data.put(key, node);
+        node.linkLast(window);
+        windowSize++;
+        if (windowSize > windowMax) {
+            Node<K, V> candidate = window.next;
+            candidate.unlink();
+            windowSize--;
+            candidate.queue = PROBATION;
+            candidate.linkLast(probation);
+            if (data.size() > cap) {
+                evictFromMain(candidate);
+            }
+        }
+        return null;
+    }
+
+    public V remove(K key) {
+        Node<K, V> node = data.remove(key);
+        if (node == null) {
+            return null;
+        }
+        unlink(node);
+        return node.value;
+    }
+
+    /**
+     * Removes all entries without calling the eviction handler.
+     *
+     * The frequency history is kept.
+     */
+    public void clear() {
+        data.clear();
+        window.unlink();
+        probation.unlink();
+        protect.unlink();
+        windowSize = 0;
+        protectedSize = 0;
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public int capacity() {
+        return cap;
+    }
+
+    private void onHit(Node<K, V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                node.unlink();
+                node.linkLast(window);
+                break;
+            case PROBATION:
+                node.unlink();
+                node.queue = PROTECTED;
+                node.linkLast(protect);
+                protectedSize++;
+                if (protectedSize > protectedMax) {
+                    Node<K, V> demoted = protect.next;
+                    demoted.unlink();
+                    protectedSize--;
+                    demoted.queue = PROBATION;
+                    demoted.linkLast(probation);
+                }
+                break;
+            case PROTECTED:
+                node.unlink();
+                node.linkLast(protect);
+                break;
+        }
+    }
+
+    private void evictFromMain(Node<K, V> candidate) {
+        Node<K, V> victim = probation.next;
+        if (victim == candidate) {
+            // only the candidate is on probation, so compete with the protected segment
+            victim = (protect.next != protect) ? protect.next : candidate;
+        }
+        Node<K, V> evicted;
+        if ((victim != candidate) && (sketch.frequency(candidate.key) > sketch.frequency(victim.key))) {
+            evicted = victim;
+        } else {
+            evicted = candidate;
+        }
+        data.remove(evicted.key);
+        unlink(evicted);
+        if (stats != null) {
+            stats.recordEviction(LRUCache.EvictionCause.SIZE);
+        }
+        if (evicH != null) {
+            evicH.evicted(evicted, LRUCache.EvictionCause.SIZE);
+        }
+    }
+
+    private void unlink(Node<K, V> node) {
+        node.unlink();
+        if (node.queue == WINDOW) {
+            windowSize--;
+        } else if (node.queue == PROTECTED) {
+            protectedSize--;
+        }
+    }
+
+    private static final class Node<K, V> implements Map.Entry<K, V> {
+
+        private final K key;
+        private V value;
+        private int queue;
+        private Node<K, V> prev = this;
+        private Node<K, V> next = this;
+
+        private Node(K key, V value, int queue) {
+            this.key = key;
+            this.value = value;
+            this.queue = queue;
+        }
+
+        private void linkLast(Node<K, V> head) {
+            prev = head.prev;
+            next = head;
+            head.prev.next = this;
+            head.prev = this;
+        }
+
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException("Entries can't be modified!");
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common.cachesim;
+
+import com.lkroll.common.ConcurrentLRUCache;
+import com.lkroll.common.LRUCache;
+import com.lkroll.common.LongLRUCache;
+import com.lkroll.common.TinyLFUCache;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * A cache under simulation, which loads every key it misses.
+ *
+ * @author lkroll
+ */
+public interface Policy {
+
+    /**
+     * Looks key up, inserting it on a miss.
+     *
+     * @return whether it was a hit
+     */
+    public boolean access(long key);
+
+    public static Policy lru(int capacity) {
+        LRUCache<Long, Boolean> cache = new LRUCache<>(capacity);
+        return key -> {
+            if (cache.get(key) != null) {
+                return true;
+            }
+            cache.put(key, Boolean.TRUE);
+            return false;
+        };
+    }
+
+    /**
+     * Segmented LRU with the default concurrency level. The segments share
+     * exactly capacity entries, but recency is only tracked per segment.
+     */
+    public static Policy concurrentLru(int capacity) {
+        ConcurrentLRUCache<Long, Boolean> cache = new ConcurrentLRUCache<>(capacity);
+        return key -> {
+            if (cache.get(key) != null) {
+                return true;
+            }
+            cache.put(key, Boolean.TRUE);
+            return false;
+        };
+    }
+
+    public static Policy tinyLfu(int capacity) {
+        TinyLFUCache<Long, Boolean> cache = new TinyLFUCache<>(capacity);
+        return key -> {
+            if (cache.get(key) != null) {
+                return true;
+            }
+            cache.put(key, Boolean.TRUE);
+            return false;
+        };
+    }
+
+    public static Policy longLru(int capacity) {
+        LongLRUCache<Boolean> cache = new LongLRUCache<>(capacity);
+        return key -> {
+            if (cache.get(key) != null) {
+                return true;
+            }
+            cache.put(key, Boolean.TRUE);
+            return false;
+        };
+    }
+
+    /**
+     * @return the policies of this library by name, creating a policy for a given capacity
+     */
+    public static Map<String, IntFunction<Policy>> standard() {
+        Map<String, IntFunction<Policy>> policies = new LinkedHashMap<>();
+        policies.put("lru", Policy::lru);
+        policies.put("concurrent-lru", Policy::concurrentLru);
+        policies.put("tinylfu", Policy::tinyLfu);
+        policies.put("long-lru", Policy::longLru);
+        return policies;
+    }
+}
@@ -0,0 +1,257 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common.cachesim;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Replays access traces against cache policies of different capacities and
+ * reports hit ratios and throughput.
+ *
+ * Can be run from the command line, e.g.
+ * <pre>
+ * java com.lkroll.common.cachesim.Simulator --zipf 100000,0.9,1000000 --scans 50000,20000 \
+ *     --capacities 1000,10000,50000 --policies lru,tinylfu
+ * </pre>
+ * where the trace comes from exactly one of
+ * {@code --text FILE}, {@code --binary FILE} (see {@link Traces}),
+ * {@code --zipf KEYS,SKEW,LENGTH}, {@code --uniform KEYS,LENGTH} or
+ * {@code --loop KEYS,REPETITIONS}, optionally mixed with
+ * {@code --scans EVERY,LENGTH} and seeded with {@code --seed N}.
+ * {@code --runs N} sets how often each policy is replayed.
+ *
+ * Throughput numbers include the adapters' overhead and are only comparable
+ * between policies within the same run. Each policy is replayed several times
+ * and the median run is reported, so the first policy doesn't pay for JIT
+ * warm-up alone.
+ *
+ * @author lkroll
+ */
+public abstract class Simulator {
+
+    public static final int DEFAULT_RUNS = 3;
+
+    public static Result run(String name, Policy policy, int capacity, long[] trace) {
+        long hits = 0;
+        long start = System.nanoTime();
+        for (long key : trace) {
+            if (policy.access(key)) {
+                hits++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        return new Result(name, capacity, hits, trace.length - hits, nanos);
+    }
+
+    public static List<Result> run(Map<String, IntFunction<Policy>> policies, int[] capacities, long[] trace) {
+        return run(policies, capacities, trace, DEFAULT_RUNS);
+    }
+
+    /**
+     * Runs every policy at every capacity, each run on a fresh cache.
+     *
+     * @param runs how often to replay each combination; the run with the
+     * median time is kept
+     */
+    public static List<Result> run(Map<String, IntFunction<Policy>> policies, int[] capacities, long[] trace, int runs) {
+        if (runs < 1) {
+            throw new IllegalArgumentException("Need at least one run, not " + runs);
+        }
+        List<Result> results = new ArrayList<>();
+        for (int capacity : capacities) {
+            for (Map.Entry<String, IntFunction<Policy>> e : policies.entrySet()) {
+                Result[] repeated = new Result[runs];
+                for (int i = 0; i < runs; i++) {
+                    repeated[i] = run(e.getKey(), e.getValue().apply(capacity), capacity, trace);
+                }
+                Arrays.sort(repeated, Comparator.comparingLong(r -> r.nanos));
+                results.add(repeated[runs / 2]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Formats results as two tables, hit ratios and throughput, with a row
+     * per capacity and a column per policy.
+     */
+    public static String report(List<Result> results) {
+        List<String> names = new ArrayList<>();
+        Map<Integer, Map<String, Result>> rows = new LinkedHashMap<>();
+        for (Result r : results) {
+            if (!names.contains(r.policy)) {
+                names.add(r.policy);
+            }
+            rows.computeIfAbsent(r.capacity, c -> new LinkedHashMap<>()).put(r.policy, r);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("Hit ratio\n");
+        table(sb, names, rows, r -> String.format(Locale.ROOT, "%.4f", r.hitRatio()));
+        sb.append("\nThroughput (million accesses/s)\n");
+        table(sb, names, rows, r -> String.format(Locale.ROOT, "%.2f", r.throughput() / 1e6));
+        return sb.toString();
+    }
+
+    private static void table(StringBuilder sb, List<String> names, Map<Integer, Map<String, Result>> rows,
+            Function<Result, String> cell) {
+        sb.append(String.format(Locale.ROOT, "%12s", "capacity"));
+        for (String name : names) {
+            sb.append(String.format(Locale.ROOT, " %15s", name));
+        }
+        sb.append('\n');
+        for (Map.Entry<Integer, Map<String, Result>> row : rows.entrySet()) {
+            sb.append(String.format(Locale.ROOT, "%12d", row.getKey()));
+            for (String name : names) {
+                Result r = row.getValue().get(name);
+                sb.append(String.format(Locale.ROOT, " %15s", (r == null) ? "-" : cell.apply(r)));
+            }
+            sb.append('\n');
+        }
+    }
+
+    public static void main(String[] args) {
+        long[] trace = null;
+        int[] capacities = null;
+        Map<String, IntFunction<Policy>> policies = Policy.standard();
+        long seed = 0;
+        int scanEvery = -1;
+        int scanLength = 0;
+        int runs = DEFAULT_RUNS;
+        try {
+            // the seed may come after the generator it applies to
+            for (int i = 0; i < args.length - 1; i++) {
+                if (args[i].equals("--seed")) {
+                    seed = Long.parseLong(args[i + 1]);
+                }
+            }
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                String[] parts = value.split(",");
+                switch (arg) {
+                    case "--text":
+                        trace = Traces.readText(Paths.get(value));
+                        break;
+                    case "--binary":
+                        trace = Traces.readBinary(Paths.get(value));
+                        break;
+                    case "--zipf":
+                        trace = Traces.zipf(Integer.parseInt(parts[0]), Double.parseDouble(parts[1]), Integer.parseInt(parts[2]), seed);
+                        break;
+                    case "--uniform":
+                        trace = Traces.uniform(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), seed);
+                        break;
+                    case "--loop":
+                        trace = Traces.loop(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+                        break;
+                    case "--scans":
+                        scanEvery = Integer.parseInt(parts[0]);
+                        scanLength = Integer.parseInt(parts[1]);
+                        break;
+                    case "--capacities":
+                        capacities = new int[parts.length];
+                        for (int j = 0; j < parts.length; j++) {
+                            capacities[j] = Integer.parseInt(parts[j]);
+                        }
+                        break;
+                    case "--policies":
+                        Map<String, IntFunction<Policy>> all = Policy.standard();
+                        policies = new LinkedHashMap<>();
+                        for (String name : parts) {
+                            if (!all.containsKey(name)) {
+                                throw new IllegalArgumentException("Unknown policy " + name + ", expected one of " + all.keySet());
+                            }
+                            policies.put(name, all.get(name));
+                        }
+                        break;
+                    case "--runs":
+                        runs = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        break; // handled above
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (trace == null) {
+                throw new IllegalArgumentException("No trace given");
+            }
+            if (capacities == null) {
+                throw new IllegalArgumentException("No capacities given");
+            }
+        } catch (IllegalArgumentException ex) { // includes NumberFormatException
+            System.err.println(ex.getMessage());
+            System.err.println("Usage: Simulator (--text FILE | --binary FILE | --zipf KEYS,SKEW,LENGTH | --uniform KEYS,LENGTH | --loop KEYS,REPETITIONS)"
+                    + " [--scans EVERY,LENGTH] [--seed N] [--runs N] --capacities C1,C2,... [--policies " + String.join(",", Policy.standard().keySet()) + "]");
+            System.exit(1);
+            return;
+        }
+        if (scanEvery > 0) {
+            trace = Traces.withScans(trace, scanEvery, scanLength);
+        }
+        System.out.println("Replaying " + trace.length + " accesses");
+        System.out.print(report(run(policies, capacities, trace, runs)));
+    }
+
+    public static final class Result {
+
+        public final String policy;
+        public final int capacity;
+        public final long hits;
+        public final long misses;
+        public final long nanos;
+
+        public Result(String policy, int capacity, long hits, long misses, long nanos) {
+            this.policy = policy;
+            this.capacity = capacity;
+            this.hits = hits;
+            this.misses = misses;
+            this.nanos = nanos;
+        }
+
+        public double hitRatio() {
+            long accesses = hits + misses;
+            return (accesses == 0) ? Double.NaN : ((double) hits) / accesses;
+        }
+
+        /**
+         * @return accesses per second
+         */
+        public double throughput() {
+            return (nanos == 0) ? Double.NaN : (hits + misses) * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Result(" + policy + ", capacity=" + capacity + ", hitRatio=" + hitRatio() + ", throughput=" + throughput() + "/s)";
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.lkroll.common.cachesim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Reading, writing and generating access traces, which are simply arrays of
+ * keys in access order.
+ *
+ * The text format has one decimal key per line, ignoring blank lines and
+ * lines starting with '#'. The binary format is a sequence of big endian
+ * 8 byte keys.
+ *
+ * @author lkroll
+ */
+public abstract class Traces {
+
+    public static long[] readText(Path path) {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            LongArrayBuilder keys = new LongArrayBuilder();
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    keys.add(Long.parseLong(line));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Not a key in line " + lineNumber + " of " + path + ": " + line, ex);
+                }
+            }
+            return keys.build();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public static void writeText(Path path, long[] trace) {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (long key : trace) {
+                writer.write(Long.toString(key));
+                writer.newLine();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public static long[] readBinary(Path path) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            long size = Files.size(path);
+            if ((size % Long.BYTES) != 0) {
+                throw new IllegalArgumentException("Binary trace " + path + " has " + size + " bytes, which isn't a multiple of 8");
+            }
+            if ((size / Long.BYTES) > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Binary trace " + path + " is too large");
+            }
+            long[] trace = new long[(int) (size / Long.BYTES)];
+            for (int i = 0; i < trace.length; i++) {
+                trace[i] = in.readLong();
+            }
+            return trace;
+        } catch (EOFException ex) {
+            throw new RuntimeException("Binary trace " + path + " changed while reading it", ex);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public static void writeBinary(Path path, long[] trace) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            for (long key : trace) {
+                out.writeLong(key);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Keys 0 until keys, where key i is accessed with probability
+     * proportional to 1/(i+1)^skew.
+     */
+    public static long[] zipf(int keys, double skew, int length, long seed) {
+        if (keys <= 0) {
+            throw new IllegalArgumentException("keys must be positive: " + keys);
+        }
+        double[] cdf = new double[keys];
+        double sum = 0.0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        Random rand = new Random(seed);
+        long[] trace = new long[length];
+        for (int i = 0; i < length; i++) {
+            int pos = Arrays.binarySearch(cdf, rand.nextDouble() * sum);
+            trace[i] = (pos < 0) ? -(pos + 1) : pos;
+        }
+        return trace;
+    }
+
+    /**
+     * Keys 0 until keys, accessed with equal probability.
+     */
+    public static long[] uniform(int keys, int length, long seed) {
+        Random rand = new Random(seed);
+        long[] trace = new long[length];
+        for (int i = 0; i < length; i++) {
+            trace[i] = rand.nextInt(keys);
+        }
+        return trace;
+    }
+
+    /**
+     * Each of the keys from start until start + length once, in order.
+     */
+    public static long[] scan(long start, int length) {
+        long[] trace = new long[length];
+        for (int i = 0; i < length; i++) {
+            trace[i] = start + i;
+        }
+        return trace;
+    }
+
+    /**
+     * The keys 0 until keys in order, repeated the given number of times.
+     */
+    public static long[] loop(int keys, int repetitions) {
+        long[] trace = new long[keys * repetitions];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = i % keys;
+        }
+        return trace;
+    }
+
+    /**
+     * The given trace, interrupted every scanEvery accesses by a scan over
+     * scanLength keys that don't occur anywhere else (negative ones).
+     */
+    public static long[] withScans(long[] trace, int scanEvery, int scanLength) {
+        LongArrayBuilder keys = new LongArrayBuilder();
+        long scanKey = Long.MIN_VALUE;
+        for (int i = 0; i < trace.length; i++) {
+            if ((i % scanEvery) == 0) {
+                for (int j = 0; j < scanLength; j++) {
+                    keys.add(scanKey++);
+                }
+            }
+            keys.add(trace[i]);
+        }
+        return keys.build();
+    }
+
+    public static long[] concat(long[]... traces) {
+        int length = 0;
+        for (long[] trace : traces) {
+            length += trace.length;
+        }
+        long[] result = new long[length];
+        int pos = 0;
+        for (long[] trace : traces) {
+            System.arraycopy(trace, 0, result, pos, trace.length);
+            pos += trace.length;
+        }
+        return result;
+    }
+
+    private static final class LongArrayBuilder {
+
+        private long[] data = new long[1024];
+        private int size = 0;
+
+        private void add(long key) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = key;
+        }
+
+        private long[] build() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+}
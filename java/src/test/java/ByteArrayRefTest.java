@@ -0,0 +1,123 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.google.common.primitives.UnsignedBytes;
+import com.lkroll.common.ByteArrayRef;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class ByteArrayRefTest {
+
+    private static int naiveCompare(byte[] a, byte[] b) {
+        if (a.length != b.length) {
+            return a.length - b.length;
+        }
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                return a[i] - b[i];
+            }
+        }
+        return 0;
+    }
+
+    private static ByteArrayRef inBigArray(byte[] data, int offset) {
+        byte[] big = new byte[data.length + offset + 5];
+        System.arraycopy(data, 0, big, offset, data.length);
+        return new ByteArrayRef(offset, data.length, big);
+    }
+
+    @Test
+    public void compareTest() {
+        Random rand = new Random(42);
+        for (int round = 0; round < 10000; round++) {
+            int l = rand.nextInt(40);
+            byte[] a = new byte[l];
+            rand.nextBytes(a);
+            byte[] b = Arrays.copyOf(a, rand.nextBoolean() ? l : rand.nextInt(40));
+            if ((b.length > 0) && rand.nextBoolean()) {
+                b[rand.nextInt(b.length)] = (byte) rand.nextInt();
+            }
+            ByteArrayRef ra = inBigArray(a, rand.nextInt(7));
+            ByteArrayRef rb = inBigArray(b, rand.nextInt(7));
+            Assert.assertEquals(Integer.signum(naiveCompare(a, b)), Integer.signum(ra.compareTo(rb)));
+            Assert.assertEquals(Integer.signum(naiveCompare(a, b)), Integer.signum(ra.compareTo(b)));
+            Assert.assertEquals(Integer.signum(UnsignedBytes.lexicographicalComparator().compare(a, b)),
+                    Integer.signum(ByteArrayRef.UNSIGNED_LEXICOGRAPHIC.compare(ra, rb)));
+            Assert.assertEquals(Arrays.equals(a, b), ra.equals(rb));
+            if (Arrays.equals(a, b)) {
+                Assert.assertEquals(ra.hashCode(), rb.hashCode());
+                Assert.assertEquals(ra.hash64(), rb.hash64());
+            }
+        }
+    }
+
+    @Test
+    public void hashCacheTest() {
+        ByteArrayRef ref = ByteArrayRef.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        int h = ref.hashCode();
+        Assert.assertEquals(h, ref.hashCode());
+        ref.assign(3, (byte) 42);
+        Assert.assertNotEquals(h, ref.hashCode());
+        Assert.assertEquals(ByteArrayRef.wrap(ref.dereference()).hashCode(), ref.hashCode());
+        Set<Long> hashes = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = new byte[16];
+            key[i % 16] = (byte) (i / 16 + 1);
+            hashes.add(ByteArrayRef.wrap(key).hash64());
+        }
+        Assert.assertEquals(1000, hashes.size());
+    }
+
+    @Test
+    public void primitiveAccessTest() {
+        byte[] backing = new byte[64];
+        new Random(5).nextBytes(backing);
+        ByteArrayRef ref = new ByteArrayRef(3, 40, backing);
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            ByteBuffer expected = ByteBuffer.wrap(backing).order(order);
+            for (int i = 0; i + 8 <= 40; i++) {
+                Assert.assertEquals(expected.getShort(3 + i), ref.getShort(i, order));
+                Assert.assertEquals(expected.getInt(3 + i), ref.getInt(i, order));
+                Assert.assertEquals(expected.getLong(3 + i), ref.getLong(i, order));
+                Assert.assertEquals(expected.getDouble(3 + i), ref.getDouble(i, order), 0.0);
+            }
+            ref.putShort(0, (short) 0xABCD, order);
+            Assert.assertEquals((short) 0xABCD, expected.getShort(3));
+            ref.putInt(2, 0x12345678, order);
+            Assert.assertEquals(0x12345678, expected.getInt(5));
+            ref.putLong(32, 0x0102030405060708L, order);
+            Assert.assertEquals(0x0102030405060708L, expected.getLong(35));
+        }
+        try {
+            ref.getLong(33, ByteOrder.BIG_ENDIAN);
+            Assert.fail("Should have thrown");
+        } catch (IndexOutOfBoundsException ex) {
+            // expected
+        }
+    }
+}
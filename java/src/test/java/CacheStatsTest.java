@@ -0,0 +1,137 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.CacheStats;
+import com.lkroll.common.ConcurrentLRUCache;
+import com.lkroll.common.LRUCache;
+import com.lkroll.common.LoadingCache;
+import com.lkroll.common.TinyLFUCache;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class CacheStatsTest {
+
+    @Test
+    public void lruCacheTest() {
+        AtomicLong time = new AtomicLong(0);
+        CacheStats stats = new CacheStats();
+        LRUCache<Integer, Integer> cache = new LRUCache<Integer, Integer>(2).recordStats(stats)
+                .withTicker(time::get).expireAfterWrite(1, TimeUnit.SECONDS);
+        cache.put(1, 1);
+        cache.put(2, 2);
+        cache.put(3, 3);
+        Assert.assertNull(cache.get(1));
+        Assert.assertEquals(2, (int) cache.get(2));
+        time.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        Assert.assertNull(cache.get(3));
+        CacheStats.Snapshot snap = stats.snapshot();
+        Assert.assertEquals(1, snap.hits);
+        Assert.assertEquals(2, snap.misses);
+        Assert.assertEquals(1, snap.sizeEvictions);
+        Assert.assertEquals(2, snap.expiredEvictions);
+        Assert.assertEquals(1.0 / 3.0, snap.hitRatio(), 1e-9);
+        cache.put(4, 4);
+        cache.get(4);
+        CacheStats.Snapshot diff = stats.snapshot().minus(snap);
+        Assert.assertEquals(1, diff.hits);
+        Assert.assertEquals(0, diff.misses);
+        Assert.assertEquals(1.0, diff.hitRatio(), 1e-9);
+    }
+
+    @Test
+    public void otherCachesTest() {
+        CacheStats stats = new CacheStats();
+        ConcurrentLRUCache<Integer, Integer> concurrent = new ConcurrentLRUCache<Integer, Integer>(4, 1, null).recordStats(stats);
+        TinyLFUCache<Integer, Integer> tiny = new TinyLFUCache<Integer, Integer>(4).recordStats(stats);
+        for (int i = 0; i < 10; i++) {
+            concurrent.put(i, i);
+            tiny.put(i, i);
+        }
+        concurrent.get(9);
+        tiny.get(100);
+        Assert.assertEquals(1, stats.getHitCount());
+        Assert.assertEquals(1, stats.getMissCount());
+        Assert.assertEquals(12, stats.getSizeEvictionCount());
+    }
+
+    @Test
+    public void loadingCacheTest() {
+        CacheStats stats = new CacheStats();
+        LoadingCache<Integer, Integer> cache = new LoadingCache<Integer, Integer>(10).recordStats(stats);
+        cache.get(1, k -> k);
+        cache.get(1, k -> k);
+        try {
+            cache.get(2, k -> {
+                throw new IllegalStateException();
+            });
+            Assert.fail("Should have thrown");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        Assert.assertEquals(1, stats.getHitCount());
+        Assert.assertEquals(2, stats.getMissCount());
+        Assert.assertEquals(1, stats.getLoadSuccessCount());
+        Assert.assertEquals(1, stats.getLoadFailureCount());
+        Assert.assertTrue(stats.getAverageLoadPenaltyNanos() >= 0.0);
+    }
+
+    @Test
+    public void ratesTest() {
+        AtomicLong time = new AtomicLong(0);
+        CacheStats stats = new CacheStats(0.5, time::get);
+        Assert.assertTrue(Double.isNaN(stats.getHitRate()));
+        for (int i = 0; i < 100; i++) {
+            stats.recordHit();
+        }
+        time.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        stats.updateRates();
+        Assert.assertEquals(50.0, stats.getHitRate(), 1e-9);
+        Assert.assertEquals(1.0, stats.getSmoothedHitRatio(), 1e-9);
+        for (int i = 0; i < 100; i++) {
+            stats.recordMiss();
+        }
+        time.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        stats.updateRates();
+        Assert.assertEquals(25.0, stats.getHitRate(), 1e-9);
+        Assert.assertEquals(50.0, stats.getMissRate(), 1e-9);
+        Assert.assertEquals(0.5, stats.getSmoothedHitRatio(), 1e-9);
+    }
+
+    @Test
+    public void mbeanTest() throws Exception {
+        CacheStats stats = new CacheStats();
+        stats.recordHit();
+        ObjectName name = stats.registerMBean("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Assert.assertEquals(1L, server.getAttribute(name, "HitCount"));
+        } finally {
+            stats.unregisterMBean();
+        }
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,84 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.CachedFileRef;
+import com.lkroll.common.DataRef;
+import com.lkroll.common.RAFileRef;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class CachedFileRefTest {
+
+    @Test
+    public void hitMissTest() throws IOException {
+        byte[] content = new byte[100000];
+        new Random(42).nextBytes(content);
+        CachedFileRef ref = new CachedFileRef(TestFiles.fileRef(content), 4096, 4, CachedFileRef.WritePolicy.WRITE_THROUGH);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 8192; i += 7) {
+                Assert.assertEquals(content[i], ref.dereference(i));
+            }
+        }
+        Assert.assertEquals(2, ref.misses());
+        Assert.assertTrue(ref.hitRatio() > 0.99);
+        Assert.assertArrayEquals(content, ref.dereference()); // bypasses the cache
+        for (int i = 0; i < 100000; i += 4096) {
+            ref.dereference(i);
+        }
+        Assert.assertEquals(4, ref.cachedBlocks());
+        ref.dereference(10); // cache the block being written
+        long hits = ref.hits();
+        long misses = ref.misses();
+        ref.assign(10, new byte[]{1, 2, 3});
+        Assert.assertEquals(hits, ref.hits());
+        Assert.assertEquals(misses, ref.misses());
+        Assert.assertEquals(2, ref.fileRef().dereference(11));
+        Assert.assertEquals(3, ref.dereference(12));
+        ref.release();
+    }
+
+    @Test
+    public void writeBackTest() throws IOException {
+        byte[] content = new byte[100000];
+        new Random(42).nextBytes(content);
+        RAFileRef file = TestFiles.fileRef(content);
+        file.retain(); // so we can check after the cache is gone
+        CachedFileRef ref = new CachedFileRef(file, 1024, 8, CachedFileRef.WritePolicy.WRITE_BACK);
+        byte[] patch = new byte[3000];
+        new Random(7).nextBytes(patch);
+        ref.assign(500, patch);
+        System.arraycopy(patch, 0, content, 500, patch.length);
+        Assert.assertEquals(content[600], ref.dereference(600));
+        Assert.assertNotEquals(content[600], file.dereference(600));
+        int pos = 0;
+        for (DataRef chunk : ref.split(20, 5000)) {
+            Assert.assertEquals(content[pos + 100], chunk.dereference(100));
+            pos += chunk.size();
+            chunk.release();
+        }
+        ref.release();
+        Assert.assertArrayEquals(content, file.dereference());
+        file.release();
+    }
+}
@@ -0,0 +1,93 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.ByteArrayRef;
+import com.lkroll.common.CompositeDataRef;
+import com.lkroll.common.DataRef;
+import com.lkroll.common.DirectBufferRef;
+import com.lkroll.common.RAFileRef;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class CompositeDataRefTest {
+
+    @Test
+    public void compositeTest() throws IOException {
+        byte[] content = new byte[10000];
+        new Random(42).nextBytes(content);
+        File f = File.createTempFile("compositedataref", ".data");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.write(content, 3000, 4000);
+        RAFileRef fileRef = new RAFileRef(f, raf);
+        fileRef.markForDeletion();
+        DirectBufferRef direct = DirectBufferRef.allocate(3000);
+        direct.assign(0, Arrays.copyOfRange(content, 7000, 10000));
+        CompositeDataRef composite = CompositeDataRef.of(
+                new ByteArrayRef(0, 1000, content),
+                ByteArrayRef.wrap(new byte[0]),
+                new ByteArrayRef(1000, 2000, content),
+                fileRef,
+                direct);
+        Assert.assertEquals(4, composite.numberOfComponents());
+        Assert.assertEquals(content.length, composite.size());
+        Assert.assertArrayEquals(content, composite.dereference());
+        for (int i = 0; i < content.length; i += 123) {
+            Assert.assertEquals(content[i], composite.dereference(i));
+        }
+        int pos = 0;
+        for (DataRef chunk : composite.split(4, 2500)) {
+            byte[] expected = Arrays.copyOfRange(content, pos, pos + (int) chunk.size());
+            Assert.assertArrayEquals(expected, chunk.dereference());
+            pos += chunk.size();
+            chunk.release();
+        }
+        Assert.assertEquals(content.length, pos);
+
+        ByteBuf buf = Unpooled.buffer();
+        composite.copyTo(buf);
+        byte[] bufContent = new byte[content.length];
+        buf.readBytes(bufContent);
+        Assert.assertArrayEquals(content, bufContent);
+        CompositeByteBuf cbuf = composite.toByteBuf();
+        Assert.assertEquals(content.length, cbuf.readableBytes());
+        Assert.assertEquals(content[9999], cbuf.getByte(9999));
+        cbuf.release();
+
+        byte[] patch = new byte[4000];
+        new Random(7).nextBytes(patch);
+        composite.assign(2500, patch); // spans three components
+        System.arraycopy(patch, 0, content, 2500, patch.length);
+        Assert.assertArrayEquals(content, composite.dereference());
+
+        composite.release();
+        Assert.assertFalse(f.exists());
+        Assert.assertEquals(0, direct.rc());
+    }
+}
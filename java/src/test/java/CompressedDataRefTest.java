@@ -0,0 +1,87 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.ByteArrayRef;
+import com.lkroll.common.CompressedDataRef;
+import com.lkroll.common.DataRef;
+import com.lkroll.common.MemoryBudget;
+import com.lkroll.common.SpillingDataRef;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class CompressedDataRefTest {
+
+    @Test
+    public void roundTripTest() {
+        // compressible text with some random blocks in between
+        Random rand = new Random(42);
+        byte[] content = new byte[300000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) ('a' + (i % 7) + ((i / 1000) % 3));
+        }
+        byte[] noise = new byte[20000];
+        rand.nextBytes(noise);
+        System.arraycopy(noise, 0, content, 100000, noise.length);
+
+        SpillingDataRef target = new SpillingDataRef(100000, MemoryBudget.unbounded(), null);
+        CompressedDataRef ref = CompressedDataRef.compress(ByteArrayRef.wrap(content), 16384, Deflater.BEST_SPEED, target);
+        Assert.assertEquals(content.length, ref.size());
+        Assert.assertTrue(ref.storedSize() < content.length / 4);
+        Assert.assertArrayEquals(content, ref.dereference());
+        for (int i = 0; i < 1000; i++) {
+            int start = rand.nextInt(content.length);
+            int end = start + rand.nextInt(Math.min(50000, content.length - start) + 1);
+            if (end > start) {
+                Assert.assertArrayEquals(Arrays.copyOfRange(content, start, end), ref.dereference(start, end));
+            }
+            Assert.assertEquals(content[start], ref.dereference(start));
+        }
+        int pos = 0;
+        for (DataRef chunk : ref.split(7, 50000)) {
+            ByteBuf buf = Unpooled.buffer();
+            chunk.copyTo(buf);
+            byte[] data = new byte[buf.readableBytes()];
+            buf.readBytes(data);
+            Assert.assertArrayEquals(Arrays.copyOfRange(content, pos, pos + data.length), data);
+            byte[] copy = new byte[(int) chunk.size()];
+            chunk.copyTo(ByteArrayRef.wrap(copy), 0);
+            Assert.assertArrayEquals(data, copy);
+            pos += data.length;
+            chunk.release();
+        }
+        Assert.assertEquals(content.length, pos);
+        ref.release();
+    }
+
+    @Test
+    public void emptyTest() {
+        CompressedDataRef ref = CompressedDataRef.compress(ByteArrayRef.wrap(new byte[0]));
+        Assert.assertEquals(0, ref.size());
+        Assert.assertEquals(0, ref.dereference().length);
+        ref.release();
+    }
+}
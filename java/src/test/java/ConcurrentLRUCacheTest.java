@@ -0,0 +1,125 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.ConcurrentLRUCache;
+import com.lkroll.common.LRUCache;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class ConcurrentLRUCacheTest {
+
+    @Test
+    public void accessOrderTest() {
+        LRUCache<Integer, String> cache = new LRUCache<>(2);
+        cache.put(1, "one");
+        cache.put(2, "two");
+        Assert.assertEquals("one", cache.get(1));
+        cache.put(3, "three");
+        Assert.assertTrue(cache.containsKey(1));
+        Assert.assertFalse(cache.containsKey(2));
+    }
+
+    @Test
+    public void singleSegmentTest() {
+        List<Integer> evicted = new ArrayList<>();
+        ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(3, 1, e -> evicted.add(e.getKey()));
+        Assert.assertEquals(1, cache.numberOfSegments());
+        cache.put(1, "one");
+        cache.put(2, "two");
+        cache.put(3, "three");
+        Assert.assertEquals("one", cache.get(1));
+        cache.put(4, "four");
+        Assert.assertEquals(1, evicted.size());
+        Assert.assertEquals(2, (int) evicted.get(0));
+        Assert.assertEquals("four", cache.putIfAbsent(4, "vier"));
+        Assert.assertEquals("three", cache.remove(3));
+        Assert.assertEquals(2, cache.size());
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(1, evicted.size());
+    }
+
+    @Test
+    public void capacityTest() {
+        ConcurrentLRUCache<Integer, Integer> cache = new ConcurrentLRUCache<>(129, 64, null);
+        Assert.assertEquals(129, cache.capacity());
+        Assert.assertEquals(8, cache.numberOfSegments());
+        for (int i = 0; i < 10000; i++) {
+            cache.put(i, i);
+        }
+        Assert.assertEquals(129, cache.size());
+        ConcurrentLRUCache<Integer, Integer> small = new ConcurrentLRUCache<>(20, 64, null);
+        Assert.assertEquals(1, small.numberOfSegments());
+        Assert.assertEquals(20, small.capacity());
+    }
+
+    @Test
+    public void concurrentTest() throws InterruptedException {
+        final int capacity = 1000;
+        final int keys = 5000;
+        AtomicLong evictions = new AtomicLong();
+        ConcurrentLRUCache<Integer, Integer> cache = new ConcurrentLRUCache<>(capacity, 16, e -> evictions.incrementAndGet());
+        AtomicLong puts = new AtomicLong();
+        List<Throwable> errors = new ArrayList<>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    Random rand = new Random(seed);
+                    for (int i = 0; i < 100000; i++) {
+                        int key = rand.nextInt(keys);
+                        Integer value = cache.get(key);
+                        if (value == null) {
+                            if (cache.putIfAbsent(key, key) == null) {
+                                puts.incrementAndGet();
+                            }
+                        } else {
+                            Assert.assertEquals(key, (int) value);
+                        }
+                        if (i % 100 == 0) {
+                            Integer removed = cache.remove(rand.nextInt(keys));
+                            if (removed != null) {
+                                puts.decrementAndGet();
+                            }
+                        }
+                    }
+                } catch (Throwable ex) {
+                    synchronized (errors) {
+                        errors.add(ex);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        Assert.assertTrue(cache.size() <= cache.capacity());
+        Assert.assertEquals(puts.get(), cache.size() + evictions.get());
+    }
+}
@@ -0,0 +1,137 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.ByteArrayRef;
+import com.lkroll.common.CompositeDataRef;
+import com.lkroll.common.DataRef;
+import com.lkroll.common.RAFileRef;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class DataRefChannelTest {
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000]; // smaller than the read-ahead
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void streamTest() throws IOException {
+        byte[] content = new byte[200000];
+        new Random(42).nextBytes(content);
+        RAFileRef file = TestFiles.fileRef(content);
+        DataRef[] refs = new DataRef[]{
+            file,
+            file.split(2, 150000).iterator().next(),
+            new ByteArrayRef(10, 1000, content),
+            CompositeDataRef.of(new ByteArrayRef(0, 100, content), new ByteArrayRef(100, 199900, content))
+        };
+        byte[][] expected = new byte[][]{
+            content,
+            Arrays.copyOf(content, 150000),
+            Arrays.copyOfRange(content, 10, 1010),
+            content
+        };
+        for (int i = 0; i < refs.length; i++) {
+            Assert.assertArrayEquals(expected[i], readAll(refs[i].openInputStream()));
+            refs[i].release();
+        }
+        Assert.assertEquals(0, file.rc());
+    }
+
+    @Test
+    public void seekWriteTest() throws IOException {
+        byte[] content = new byte[200000];
+        new Random(42).nextBytes(content);
+        RAFileRef file = TestFiles.fileRef(content);
+        try (SeekableByteChannel channel = file.openWriteChannel()) {
+            ByteBuffer buf = ByteBuffer.allocate(10);
+            channel.position(1000);
+            channel.read(buf);
+            buf.flip();
+            Assert.assertEquals(content[1000], buf.get(0));
+            channel.position(1005);
+            channel.write(ByteBuffer.wrap(new byte[]{7, 7, 7}));
+            Assert.assertEquals(1008, channel.position());
+            channel.position(1000);
+            buf.clear();
+            channel.read(buf);
+            Assert.assertEquals(7, buf.get(5));
+            channel.position(199999);
+            try {
+                channel.write(ByteBuffer.wrap(new byte[]{1, 2}));
+                channel.write(ByteBuffer.wrap(new byte[]{3}));
+                Assert.fail("Should not be able to grow");
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+        try (OutputStream out = new ByteArrayRef(0, 10, content).openOutputStream()) {
+            out.write(new byte[]{9, 9});
+        }
+        Assert.assertEquals(9, content[1]);
+        Assert.assertEquals(1, file.rc());
+        Assert.assertEquals(7, file.dereference(1007));
+        file.release();
+    }
+
+    @Test
+    public void truncateTest() throws IOException {
+        byte[] content = new byte[100];
+        DataRef ref = new ByteArrayRef(0, content.length, content);
+        try (SeekableByteChannel channel = ref.openWriteChannel()) {
+            channel.position(150);
+            Assert.assertSame(channel, channel.truncate(200));
+            Assert.assertEquals(150, channel.position());
+            channel.truncate(100);
+            Assert.assertEquals(100, channel.position());
+            Assert.assertEquals(100, channel.size());
+            try {
+                channel.truncate(50);
+                Assert.fail("Should not be able to shrink");
+            } catch (UnsupportedOperationException ex) {
+                // expected
+            }
+        }
+        try (SeekableByteChannel channel = ref.openReadChannel()) {
+            channel.truncate(100);
+            Assert.fail("Should not be able to truncate a read channel");
+        } catch (NonWritableChannelException ex) {
+            // expected
+        }
+    }
+}
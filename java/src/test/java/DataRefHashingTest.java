@@ -0,0 +1,63 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.google.common.hash.Hashing;
+import com.lkroll.common.ByteArrayRef;
+import com.lkroll.common.DataRef;
+import com.lkroll.common.DataRefHashing;
+import com.lkroll.common.DataRefHashing.Algorithm;
+import com.lkroll.common.RAFileRef;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class DataRefHashingTest {
+
+    @Test
+    public void hashTest() throws IOException {
+        byte[] content = new byte[300000];
+        new Random(42).nextBytes(content);
+        RAFileRef file = TestFiles.fileRef(content);
+        for (Algorithm alg : Algorithm.values()) {
+            Assert.assertEquals(alg.function.hashBytes(content), DataRefHashing.hash(file, alg));
+            Assert.assertEquals(alg.function.hashBytes(content), DataRefHashing.hash(ByteArrayRef.wrap(content), alg));
+        }
+        Assert.assertEquals(Hashing.crc32c().hashBytes(content), DataRefHashing.hash(file, Algorithm.CRC32C));
+
+        DataRefHashing.MerkleTree fileTree = DataRefHashing.merkle(file, Algorithm.SHA256, 16000);
+        DataRefHashing.MerkleTree memTree = DataRefHashing.merkle(ByteArrayRef.wrap(content), Algorithm.SHA256, 16000);
+        Assert.assertEquals(19, fileTree.numberOfChunks());
+        Assert.assertEquals(memTree.root(), fileTree.root());
+        int i = 0;
+        for (DataRef chunk : file.split(19, 16000)) {
+            Assert.assertTrue(fileTree.verifyChunk(i, chunk));
+            Assert.assertFalse(fileTree.verifyChunk((i + 1) % 19, chunk));
+            chunk.release();
+            i++;
+        }
+        content[12345]++;
+        Assert.assertNotEquals(fileTree.root(), DataRefHashing.merkle(ByteArrayRef.wrap(content), Algorithm.SHA256, 16000).root());
+        Assert.assertEquals(1, file.rc());
+        file.release();
+    }
+}
@@ -0,0 +1,74 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.ByteArrayRef;
+import com.lkroll.common.DataRef;
+import com.lkroll.common.DirectBufferRef;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class DirectBufferRefTest {
+
+    @Test
+    public void readWriteTest() {
+        byte[] content = new byte[5000];
+        new Random(42).nextBytes(content);
+        DirectBufferRef ref = DirectBufferRef.allocate(content.length);
+        ref.assign(0, ByteArrayRef.wrap(content));
+        Assert.assertArrayEquals(content, ref.dereference());
+        ref.assign(17, (byte) 3);
+        Assert.assertEquals(3, ref.dereference(17));
+        ByteBuf buf = Unpooled.buffer();
+        ref.copyTo(buf);
+        Assert.assertEquals(content.length, buf.readableBytes());
+        ref.release();
+        Assert.assertEquals(0, ref.rc());
+    }
+
+    @Test
+    public void splitTest() {
+        byte[] content = new byte[5000];
+        new Random(42).nextBytes(content);
+        DirectBufferRef ref = DirectBufferRef.allocate(content.length);
+        ref.assign(0, content);
+        List<DataRef> chunks = new ArrayList<>();
+        for (DataRef chunk : ref.split(3, 2000)) {
+            chunks.add(chunk);
+        }
+        ref.release(); // chunks keep the memory alive
+        Assert.assertEquals(3, chunks.size());
+        int pos = 0;
+        for (DataRef chunk : chunks) {
+            byte[] expected = new byte[(int) chunk.size()];
+            System.arraycopy(content, pos, expected, 0, expected.length);
+            Assert.assertArrayEquals(expected, chunk.dereference());
+            pos += expected.length;
+            chunk.release();
+        }
+        Assert.assertEquals(0, ref.rc());
+    }
+}
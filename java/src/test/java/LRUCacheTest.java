@@ -0,0 +1,212 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.ByteArrayRef;
+import com.lkroll.common.DataRef;
+import com.lkroll.common.LRUCache;
+import com.lkroll.common.TimerWheel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class LRUCacheTest {
+
+    @Test
+    public void weightedEvictionTest() {
+        List<String> evicted = new ArrayList<>();
+        LRUCache<String, String> cache = new LRUCache<>(10, (k, v) -> v.length(), e -> evicted.add(e.getKey()));
+        Assert.assertTrue(cache.isWeighted());
+        cache.put("a", "xxx");
+        cache.put("b", "xxx");
+        cache.put("c", "xxx");
+        Assert.assertEquals(9, cache.weight());
+        cache.get("a");
+        // evicts b and c in one go
+        cache.put("d", "xxxxxxx");
+        Assert.assertEquals(10, cache.weight());
+        Assert.assertEquals(2, evicted.size());
+        Assert.assertEquals("b", evicted.get(0));
+        Assert.assertEquals("c", evicted.get(1));
+        // replacing adjusts the weight
+        cache.put("a", "x");
+        Assert.assertEquals(8, cache.weight());
+        Assert.assertEquals("x", cache.remove("a"));
+        Assert.assertEquals(7, cache.weight());
+        Assert.assertNull(cache.putIfAbsent("e", "xxx"));
+        Assert.assertEquals(10, cache.weight());
+        Assert.assertTrue(cache.replace("e", "xxx", "xx"));
+        Assert.assertEquals(9, cache.weight());
+        // too heavy for the whole cache
+        cache.put("f", "xxxxxxxxxxxx");
+        Assert.assertTrue(cache.isEmpty());
+        Assert.assertEquals(0, cache.weight());
+        Assert.assertEquals("f", evicted.get(evicted.size() - 1));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void weightedComputeTest() {
+        LRUCache<String, String> cache = new LRUCache<>(10, (k, v) -> v.length(), null);
+        cache.computeIfAbsent("a", k -> k);
+    }
+
+    @Test
+    public void dataRefTest() {
+        LRUCache<Integer, DataRef> cache = LRUCache.ofDataRefs(1000);
+        final int[] released = new int[1];
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, new ByteArrayRef(0, 300, new byte[300]) {
+                @Override
+                public void release() {
+                    released[0]++;
+                }
+            });
+        }
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(900, cache.weight());
+        Assert.assertEquals(7, released[0]);
+    }
+
+    @Test
+    public void expireAfterWriteTest() {
+        AtomicLong time = new AtomicLong(1000);
+        List<String> expired = new ArrayList<>();
+        LRUCache<String, String> cache = new LRUCache<>(10, new LRUCache.EvictionHandler<String, String>() {
+            @Override
+            public void evicted(Map.Entry<String, String> entry) {
+                Assert.fail("Should have been told the cause");
+            }
+
+            @Override
+            public void evicted(Map.Entry<String, String> entry, LRUCache.EvictionCause cause) {
+                if (cause == LRUCache.EvictionCause.EXPIRED) {
+                    expired.add(entry.getKey());
+                }
+            }
+        }).withTicker(time::get).expireAfterWrite(1, TimeUnit.SECONDS);
+        cache.put("a", "1");
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        cache.put("b", "2");
+        Assert.assertEquals("1", cache.get("a")); // reads don't extend the life
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(600));
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals("2", cache.get("b"));
+        Assert.assertEquals(1, expired.size());
+        cache.put("b", "3"); // but writes do
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(900));
+        Assert.assertTrue(cache.containsKey("b"));
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+        cache.cleanUp();
+        Assert.assertTrue(cache.isEmpty());
+        Assert.assertEquals("b", expired.get(1));
+    }
+
+    @Test
+    public void expireAfterAccessTest() {
+        AtomicLong time = new AtomicLong(-5000); // nanoTime may well be negative
+        LRUCache<String, String> cache = new LRUCache<String, String>(10).withTicker(time::get).expireAfterAccess(1, TimeUnit.MINUTES);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        for (int i = 0; i < 10; i++) {
+            time.addAndGet(TimeUnit.SECONDS.toNanos(50));
+            Assert.assertEquals("1", cache.get("a"));
+        }
+        Assert.assertFalse(cache.containsKey("b"));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void putIfAbsentExpiredTest() {
+        AtomicLong time = new AtomicLong(0);
+        LRUCache<String, String> cache = new LRUCache<String, String>(10).withTicker(time::get).expireAfterWrite(1, TimeUnit.SECONDS);
+        Assert.assertNull(cache.putIfAbsent("a", "1"));
+        Assert.assertEquals("1", cache.putIfAbsent("a", "2"));
+        time.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        Assert.assertNull(cache.putIfAbsent("a", "3"));
+        Assert.assertEquals("3", cache.get("a"));
+    }
+
+    @Test
+    public void perEntryTtlTest() {
+        AtomicLong time = new AtomicLong(0);
+        List<String> evicted = new ArrayList<>();
+        LRUCache<String, String> cache = new LRUCache<>(2, e -> evicted.add(e.getKey()));
+        cache.withTicker(time::get);
+        cache.put("forever", "x");
+        cache.put("short", "x", 10, TimeUnit.MILLISECONDS);
+        cache.put("long", "x", 3, TimeUnit.HOURS); // evicts "forever" by size
+        Assert.assertEquals("forever", evicted.get(0));
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(11));
+        Assert.assertNull(cache.get("short"));
+        time.addAndGet(TimeUnit.MINUTES.toNanos(179));
+        Assert.assertEquals("x", cache.get("long"));
+        time.addAndGet(TimeUnit.MINUTES.toNanos(2));
+        Assert.assertNull(cache.get("long"));
+        Assert.assertEquals(3, evicted.size());
+    }
+
+    @Test
+    public void weightedExpiryTest() {
+        AtomicLong time = new AtomicLong(0);
+        LRUCache<String, String> cache = new LRUCache<String, String>(10, (k, v) -> v.length(), null)
+                .withTicker(time::get).expireAfterWrite(1, TimeUnit.SECONDS);
+        cache.put("a", "xxxx");
+        cache.put("b", "xxxx");
+        Assert.assertEquals(8, cache.weight());
+        time.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        cache.cleanUp();
+        Assert.assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void timerWheelTest() {
+        Random rand = new Random(7);
+        TimerWheel<Long> wheel = new TimerWheel<>(0);
+        long[] deadlines = new long[10000];
+        for (int i = 0; i < deadlines.length; i++) {
+            // up to a day
+            deadlines[i] = (long) (rand.nextDouble() * TimeUnit.DAYS.toNanos(1));
+            wheel.schedule((long) i, deadlines[i]);
+        }
+        long now = 0;
+        int fired = 0;
+        while (wheel.size() > 0) {
+            now += (long) (rand.nextDouble() * TimeUnit.MINUTES.toNanos(10));
+            final long t = now;
+            final int[] count = new int[1];
+            wheel.advance(now, i -> {
+                Assert.assertTrue(deadlines[i.intValue()] <= t);
+                deadlines[i.intValue()] = -1;
+                count[0]++;
+            });
+            fired += count[0];
+            for (long d : deadlines) {
+                Assert.assertTrue(d > now || d == -1);
+            }
+        }
+        Assert.assertEquals(deadlines.length, fired);
+    }
+}
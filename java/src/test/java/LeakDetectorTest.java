@@ -0,0 +1,108 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.DataRef;
+import com.lkroll.common.LeakDetector;
+import com.lkroll.common.RAFileRef;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class LeakDetectorTest {
+
+    private static File createFile() throws IOException {
+        File f = File.createTempFile("leakdetector", ".data");
+        f.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.write(new byte[100]);
+        raf.close();
+        return f;
+    }
+
+    private static void leak(File f) throws IOException {
+        RAFileRef ref = new RAFileRef(f, new RandomAccessFile(f, "r"));
+        DataRef chunk = ref.split(1, 100).iterator().next();
+        chunk.dereference(0);
+        ref.release(); // but never the chunk
+    }
+
+    private static void noLeak(File f) throws IOException {
+        RAFileRef ref = new RAFileRef(f, new RandomAccessFile(f, "r"));
+        ref.retain();
+        ref.release();
+        ref.release();
+    }
+
+    @Test
+    public void paranoidTest() throws Exception {
+        final List<String> leaks = new ArrayList<>();
+        final List<Integer> records = new ArrayList<>();
+        LeakDetector.setListener((description, traces) -> {
+            leaks.add(description);
+            records.add(traces.size());
+        });
+        LeakDetector.setLevel(LeakDetector.Detection.PARANOID);
+        try {
+            File f = createFile();
+            leak(f);
+            noLeak(f);
+            for (int i = 0; (i < 50) && leaks.isEmpty(); i++) {
+                System.gc();
+                Thread.sleep(10);
+                LeakDetector.checkForLeaks();
+            }
+            Assert.assertEquals(1, leaks.size());
+            Assert.assertTrue(leaks.get(0).contains(f.getName()));
+            Assert.assertEquals(3, (int) records.get(0)); // allocation + retain + release
+        } finally {
+            LeakDetector.setLevel(LeakDetector.Detection.DISABLED);
+        }
+    }
+
+    @Test
+    public void lazyDescriptionTest() {
+        final int[] described = {0};
+        Object resource = new Object() {
+            @Override
+            public String toString() {
+                described[0]++;
+                return "resource";
+            }
+        };
+        Assert.assertEquals(LeakDetector.Detection.DISABLED, LeakDetector.getLevel());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertNull(LeakDetector.track(new Object(), "Thing", resource));
+        }
+        Assert.assertEquals(0, described[0]);
+        LeakDetector.setLevel(LeakDetector.Detection.PARANOID);
+        try {
+            LeakDetector.track(new Object(), "Thing", resource).close();
+            Assert.assertEquals(1, described[0]);
+        } finally {
+            LeakDetector.setLevel(LeakDetector.Detection.DISABLED);
+        }
+    }
+}
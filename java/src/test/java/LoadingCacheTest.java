@@ -0,0 +1,183 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.LoadingCache;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class LoadingCacheTest {
+
+    @Test
+    public void coalescingTest() throws Exception {
+        LoadingCache<String, String> cache = new LoadingCache<>(100);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(pool.submit(() -> cache.get("key", k -> {
+                    loads.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    return k + "-value";
+                })));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<String> f : results) {
+                Assert.assertEquals("key-value", f.get(10, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1, loads.get());
+            Assert.assertEquals("key-value", cache.getIfPresent("key"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failureTest() {
+        LoadingCache<String, String> cache = new LoadingCache<>(100);
+        try {
+            cache.get("key", k -> {
+                throw new IllegalStateException("backing store down");
+            });
+            Assert.fail("Should have thrown");
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("backing store down", ex.getMessage());
+        }
+        Assert.assertNull(cache.getIfPresent("key"));
+        Assert.assertNull(cache.get("key", k -> null));
+        Assert.assertEquals("v", cache.get("key", k -> "v"));
+    }
+
+    @Test
+    public void asyncTest() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            LoadingCache<Integer, Integer> cache = new LoadingCache<>(100, pool, null);
+            AtomicInteger loads = new AtomicInteger();
+            CompletableFuture<Integer> f1 = cache.getAsync(1, k -> {
+                loads.incrementAndGet();
+                return k * 10;
+            });
+            CompletableFuture<Integer> f2 = cache.getAsync(1, k -> {
+                loads.incrementAndGet();
+                return k * 10;
+            });
+            Assert.assertEquals(10, (int) f1.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(10, (int) f2.get(10, TimeUnit.SECONDS));
+            Assert.assertTrue(loads.get() <= 2); // the second may come after the first finished
+            Assert.assertEquals(10, (int) cache.getAsync(1, k -> -1).get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void getAllTest() {
+        LoadingCache<Integer, String> cache = new LoadingCache<>(100);
+        cache.put(1, "one");
+        List<Integer> calls = new ArrayList<>();
+        Map<Integer, String> result = cache.getAll(Arrays.asList(1, 2, 3, 4, 2), keys -> {
+            calls.add(keys.size());
+            Map<Integer, String> m = new HashMap<>();
+            for (Integer k : keys) {
+                if (k != 4) {
+                    m.put(k, "v" + k);
+                }
+            }
+            return m;
+        });
+        Assert.assertEquals(1, calls.size());
+        Assert.assertEquals(3, (int) calls.get(0));
+        Assert.assertEquals(3, result.size());
+        Assert.assertEquals("one", result.get(1));
+        Assert.assertEquals("v2", result.get(2));
+        Assert.assertFalse(result.containsKey(4));
+        Assert.assertEquals("v3", cache.getIfPresent(3));
+        Assert.assertNull(cache.getIfPresent(4));
+    }
+
+    @Test
+    public void refreshTest() {
+        AtomicLong time = new AtomicLong(0);
+        LoadingCache<String, Integer> cache = new LoadingCache<String, Integer>(100, Runnable::run, null)
+                .withTicker(time::get).refreshAfterWrite(1, TimeUnit.SECONDS);
+        AtomicInteger version = new AtomicInteger();
+        Assert.assertEquals(1, (int) cache.get("k", k -> version.incrementAndGet()));
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        Assert.assertEquals(1, (int) cache.get("k", k -> version.incrementAndGet()));
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(600));
+        // serves the old value but triggers a reload (run immediately here)
+        Assert.assertEquals(1, (int) cache.get("k", k -> version.incrementAndGet()));
+        Assert.assertEquals(2, (int) cache.getIfPresent("k"));
+        // failed refreshes keep the old value
+        time.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals(2, (int) cache.get("k", k -> {
+            throw new IllegalStateException();
+        }));
+        Assert.assertEquals(2, (int) cache.getIfPresent("k"));
+    }
+
+    @Test
+    public void rejectingExecutorTest() throws Exception {
+        AtomicLong time = new AtomicLong(0);
+        Executor rejecting = task -> {
+            throw new RejectedExecutionException("pool is shut down");
+        };
+        LoadingCache<String, String> cache = new LoadingCache<String, String>(100, rejecting, null)
+                .withTicker(time::get).refreshAfterWrite(1, TimeUnit.SECONDS);
+        try {
+            cache.getAsync("k", k -> "v").get(10, TimeUnit.SECONDS);
+            Assert.fail("Should have failed");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof RejectedExecutionException);
+        }
+        // the failed claim mustn't block later loads of the key
+        Assert.assertEquals("v", cache.get("k", k -> "v"));
+        // nor must a rejected refresh
+        time.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals("v", cache.get("k", k -> "w"));
+        cache.invalidate("k");
+        Assert.assertEquals("w", cache.get("k", k -> "w"));
+    }
+}
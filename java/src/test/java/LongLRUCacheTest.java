@@ -0,0 +1,85 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.LRUCache;
+import com.lkroll.common.LongLRUCache;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class LongLRUCacheTest {
+
+    @Test
+    public void basicTest() {
+        List<Long> evicted = new ArrayList<>();
+        LongLRUCache<String> cache = new LongLRUCache<>(2, (k, v) -> evicted.add(k));
+        Assert.assertNull(cache.put(1L, "one"));
+        Assert.assertNull(cache.put(2L, "two"));
+        Assert.assertEquals("one", cache.get(1L));
+        cache.put(3L, "three");
+        Assert.assertEquals(1, evicted.size());
+        Assert.assertEquals(2L, (long) evicted.get(0));
+        Assert.assertEquals("one", cache.put(1L, "uno"));
+        Assert.assertEquals("uno", cache.remove(1L));
+        Assert.assertNull(cache.remove(1L));
+        Assert.assertEquals(1, cache.size());
+        cache.clear();
+        Assert.assertTrue(cache.isEmpty());
+        Assert.assertFalse(cache.containsKey(3L));
+    }
+
+    @Test
+    public void sameAsLRUCacheTest() {
+        // replay random operations against both and compare everything
+        Random rand = new Random(11);
+        List<Long> evictedA = new ArrayList<>();
+        List<Long> evictedB = new ArrayList<>();
+        LongLRUCache<Long> a = new LongLRUCache<>(100, (k, v) -> evictedA.add(k));
+        LRUCache<Long, Long> b = new LRUCache<>(100, e -> evictedB.add(e.getKey()));
+        for (int i = 0; i < 200000; i++) {
+            long key = rand.nextInt(300) - 150;
+            switch (rand.nextInt(4)) {
+                case 0:
+                case 1:
+                    Assert.assertEquals(b.get(key), a.get(key));
+                    break;
+                case 2:
+                    Assert.assertEquals(b.put(key, (long) i), a.put(key, (long) i));
+                    break;
+                case 3:
+                    if (rand.nextInt(10) == 0) {
+                        Assert.assertEquals(b.remove(key), a.remove(key));
+                    } else {
+                        Assert.assertEquals(b.containsKey(key), a.containsKey(key));
+                    }
+                    break;
+            }
+            Assert.assertEquals(b.size(), a.size());
+        }
+        Assert.assertEquals(evictedB, evictedA);
+        List<Long> order = new ArrayList<>();
+        a.forEach((k, v) -> order.add(k));
+        Assert.assertEquals(new ArrayList<>(b.keySet()), order);
+    }
+}
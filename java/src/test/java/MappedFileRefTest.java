@@ -0,0 +1,89 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.ByteArrayRef;
+import com.lkroll.common.DataRef;
+import com.lkroll.common.MappedFileRef;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class MappedFileRefTest {
+
+    private static final int SEGMENT_SIZE = 1024; // small, so we span segments
+
+    @Test
+    public void readWriteTest() throws IOException {
+        byte[] content = new byte[5000];
+        new Random(42).nextBytes(content);
+        MappedFileRef ref = TestFiles.mapped(content, SEGMENT_SIZE);
+        File f = ref.getFile();
+        Assert.assertEquals(content.length, ref.size());
+        Assert.assertArrayEquals(content, ref.dereference());
+        for (int i = 0; i < content.length; i += 97) {
+            Assert.assertEquals(content[i], ref.dereference(i));
+        }
+        byte[] patch = new byte[2000];
+        new Random(7).nextBytes(patch);
+        ref.assign(1000, patch);
+        System.arraycopy(patch, 0, content, 1000, patch.length);
+        Assert.assertArrayEquals(patch, ref.dereference(1000, 3000));
+        ref.assign(4999, (byte) 13);
+        content[4999] = 13;
+        ByteBuf buf = Unpooled.buffer(content.length);
+        ref.copyTo(buf);
+        byte[] bufContent = new byte[content.length];
+        buf.readBytes(bufContent);
+        Assert.assertArrayEquals(content, bufContent);
+        ref.release();
+        Assert.assertFalse(f.exists());
+    }
+
+    @Test
+    public void splitTest() throws IOException {
+        byte[] content = new byte[4000];
+        new Random(42).nextBytes(content);
+        MappedFileRef ref = TestFiles.mapped(content, SEGMENT_SIZE);
+        int pos = 0;
+        for (DataRef chunk : ref.split(4, 1500)) {
+            int l = (int) chunk.size();
+            Assert.assertTrue(l <= 1500);
+            for (DataRef sub : chunk.split(3, 700)) {
+                byte[] expected = new byte[(int) sub.size()];
+                System.arraycopy(content, pos, expected, 0, expected.length);
+                Assert.assertArrayEquals(expected, sub.dereference());
+                pos += expected.length;
+                sub.release();
+            }
+            chunk.assign(0, ByteArrayRef.wrap(new byte[]{1, 2, 3}));
+            Assert.assertEquals(3, chunk.dereference(2));
+            chunk.release();
+        }
+        Assert.assertEquals(content.length, pos);
+        Assert.assertEquals(1, ref.rc());
+        ref.release();
+    }
+}
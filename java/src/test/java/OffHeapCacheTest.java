@@ -0,0 +1,197 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.DataRef;
+import com.lkroll.common.OffHeapCache;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class OffHeapCacheTest {
+
+    @Test
+    public void basicTest() {
+        OffHeapCache<String, String> cache = new OffHeapCache<>(1024 * 1024, OffHeapCache.Serializer.UTF8, OffHeapCache.Serializer.UTF8);
+        try {
+            Assert.assertNull(cache.get("a"));
+            cache.put("a", "alpha");
+            cache.put("b", "beta");
+            Assert.assertEquals("alpha", cache.get("a"));
+            Assert.assertEquals("beta", cache.get("b"));
+            cache.put("a", "aleph");
+            Assert.assertEquals("aleph", cache.get("a"));
+            Assert.assertEquals(2, cache.size());
+            Assert.assertTrue(cache.remove("a"));
+            Assert.assertFalse(cache.remove("a"));
+            Assert.assertFalse(cache.containsKey("a"));
+            Assert.assertTrue(cache.containsKey("b"));
+            Assert.assertEquals(1, cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void evictionTest() {
+        Set<Long> evicted = new HashSet<>();
+        OffHeapCache<Long, byte[]> cache = new OffHeapCache<>(16 * 4096, 4096, 1, OffHeapCache.Serializer.LONG,
+                OffHeapCache.Serializer.BYTES, e -> Assert.assertTrue(evicted.add(e.getKey())));
+        try {
+            Random rand = new Random(3);
+            for (long i = 0; i < 5000; i++) {
+                byte[] value = new byte[10 + rand.nextInt(200)];
+                fill(value, i);
+                cache.put(i, value);
+                Assert.assertTrue(cache.usedBytes() <= cache.capacity());
+            }
+            Assert.assertEquals(5000, cache.size() + evicted.size());
+            int present = 0;
+            for (long i = 0; i < 5000; i++) {
+                byte[] value = cache.get(i);
+                if (value != null) {
+                    Assert.assertFalse(evicted.contains(i));
+                    byte[] expected = new byte[value.length];
+                    fill(expected, i);
+                    Assert.assertArrayEquals(expected, value);
+                    present++;
+                } else {
+                    Assert.assertTrue(evicted.contains(i));
+                }
+            }
+            Assert.assertEquals(cache.size(), present);
+            Assert.assertTrue(present > 100);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void secondChanceTest() {
+        OffHeapCache<Long, byte[]> cache = new OffHeapCache<>(16 * 4096, 4096, 1, OffHeapCache.Serializer.LONG,
+                OffHeapCache.Serializer.BYTES, null);
+        try {
+            for (long i = 0; i < 10; i++) {
+                cache.put(i, new byte[100]);
+            }
+            // scan through lots of one-off entries while the first ten stay in use
+            for (long i = 100; i < 10000; i++) {
+                cache.put(i, new byte[100]);
+                if (i % 50 == 0) {
+                    for (long j = 0; j < 10; j++) {
+                        Assert.assertNotNull("lost hot key " + j + " at " + i, cache.get(j));
+                    }
+                }
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void viewTest() {
+        OffHeapCache<String, String> cache = new OffHeapCache<>(4 * 4096, 4096, 1, OffHeapCache.Serializer.UTF8,
+                OffHeapCache.Serializer.UTF8, null);
+        try {
+            cache.put("view", "some value");
+            DataRef ref = cache.getRef("view");
+            Assert.assertEquals("some value", new String(ref.dereference(), StandardCharsets.UTF_8));
+            try {
+                ref.assign(0, (byte) 'S');
+                Assert.fail("Views should be read-only");
+            } catch (RuntimeException ex) {
+                // expected
+            }
+            // push everything out, which must not overwrite the viewed page
+            for (int i = 0; i < 2000; i++) {
+                cache.put("key" + i, "value" + i);
+            }
+            Assert.assertNull(cache.get("view"));
+            Assert.assertEquals("some value", new String(ref.dereference(), StandardCharsets.UTF_8));
+            ref.release();
+            Assert.assertTrue(cache.usedBytes() <= cache.capacity());
+            Assert.assertNull(cache.getRef("view"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooLargeTest() {
+        OffHeapCache<Long, byte[]> cache = new OffHeapCache<>(4 * 4096, 4096, 1, OffHeapCache.Serializer.LONG,
+                OffHeapCache.Serializer.BYTES, null);
+        try {
+            cache.put(1L, new byte[4096]);
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void concurrentTest() throws InterruptedException {
+        OffHeapCache<Long, byte[]> cache = new OffHeapCache<>(64 * 4096, 4096, 8, OffHeapCache.Serializer.LONG,
+                OffHeapCache.Serializer.BYTES, null);
+        List<Throwable> errors = new ArrayList<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    Random rand = new Random(seed);
+                    for (int i = 0; i < 20000; i++) {
+                        long key = rand.nextInt(3000);
+                        byte[] value = cache.get(key);
+                        if (value == null) {
+                            value = new byte[8 + (int) (key % 100)];
+                            fill(value, key);
+                            cache.put(key, value);
+                        } else {
+                            byte[] expected = new byte[8 + (int) (key % 100)];
+                            fill(expected, key);
+                            Assert.assertArrayEquals(expected, value);
+                        }
+                    }
+                } catch (Throwable ex) {
+                    synchronized (errors) {
+                        errors.add(ex);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        cache.close();
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    private static void fill(byte[] data, long seed) {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.ByteArrayRef;
+import com.lkroll.common.ParallelCopy;
+import com.lkroll.common.RAFileRef;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class ParallelCopyTest {
+
+    @Test
+    public void fileToFileTest() throws IOException {
+        byte[] content = new byte[1000000];
+        new Random(42).nextBytes(content);
+        RAFileRef source = TestFiles.fileRef(content);
+        RAFileRef target = TestFiles.fileRef(new byte[content.length + 100]);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final AtomicLong lastProgress = new AtomicLong(0);
+            ParallelCopy copy = new ParallelCopy(pool, 10000, 3);
+            ParallelCopy.Stats stats = copy.copy(source, target, 100, (done, total, nanos) -> lastProgress.accumulateAndGet(done, Math::max));
+            Assert.assertEquals(content.length, stats.bytes);
+            Assert.assertEquals(content.length, lastProgress.get());
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertArrayEquals(content, target.dereference(100, content.length + 100));
+        Assert.assertEquals(1, source.rc());
+        source.release();
+        // and back into memory
+        byte[] copied = new byte[content.length + 100];
+        new ParallelCopy().copy(target, ByteArrayRef.wrap(copied), 0);
+        Assert.assertArrayEquals(content, Arrays.copyOfRange(copied, 100, copied.length));
+        byte[] copied2 = new byte[content.length + 100];
+        target.copyTo(ByteArrayRef.wrap(copied2), 0);
+        Assert.assertArrayEquals(copied, copied2);
+        target.release();
+    }
+}
@@ -0,0 +1,228 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.AsyncDataRef;
+import com.lkroll.common.ByteArrayRef;
+import com.lkroll.common.DataRef;
+import com.lkroll.common.RAFileRef;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledHeapByteBuf;
+import io.netty.channel.FileRegion;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class RAFileRefTest {
+
+    @Test
+    public void concurrentChunksTest() throws Exception {
+        final byte[] content = new byte[1 << 20];
+        new Random(42).nextBytes(content);
+        RAFileRef ref = TestFiles.fileRef(content);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            long chunkBegin = 0;
+            for (final DataRef chunk : ref.split(16, 4096)) {
+                final int begin = (int) chunkBegin;
+                results.add(pool.submit(() -> {
+                    // reverse every chunk in place and check it from another angle
+                    byte[] data = chunk.dereference();
+                    for (int i = 0; i < data.length; i++) {
+                        Assert.assertEquals(content[begin + i], chunk.dereference(i));
+                    }
+                    byte[] reversed = new byte[data.length];
+                    for (int i = 0; i < data.length; i++) {
+                        reversed[i] = data[data.length - 1 - i];
+                    }
+                    chunk.assign(0, reversed);
+                    Assert.assertArrayEquals(reversed, chunk.dereference());
+                    chunk.release();
+                    return null;
+                }));
+                chunkBegin += chunk.size();
+            }
+            for (Future<?> f : results) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        byte[] result = ref.dereference();
+        for (int chunk = 0; chunk < content.length / 4096; chunk++) {
+            for (int i = 0; i < 4096; i++) {
+                Assert.assertEquals(content[chunk * 4096 + i], result[chunk * 4096 + 4095 - i]);
+            }
+        }
+        Assert.assertEquals(1, ref.rc());
+        ref.release();
+    }
+
+    @Test
+    public void nestedSplitTest() throws IOException {
+        byte[] content = new byte[10000];
+        new Random(42).nextBytes(content);
+        RAFileRef ref = TestFiles.fileRef(content);
+        int pos = 0;
+        for (DataRef chunk : ref.split(3, 4000)) {
+            for (DataRef sub : chunk.split(4, 1000)) {
+                byte[] expected = new byte[(int) sub.size()];
+                System.arraycopy(content, pos, expected, 0, expected.length);
+                Assert.assertArrayEquals(expected, sub.dereference());
+                pos += expected.length;
+                sub.release();
+            }
+            chunk.release();
+        }
+        Assert.assertEquals(content.length, pos);
+        ref.release();
+    }
+
+    @Test
+    public void fileRegionTest() throws IOException {
+        byte[] content = new byte[10000];
+        new Random(42).nextBytes(content);
+        RAFileRef ref = TestFiles.fileRef(content);
+        DataRef chunk = ref.split(2, 6000).iterator().next();
+        FileRegion region = chunk.toFileRegion();
+        chunk.release(); // the region holds its own reference
+        Assert.assertEquals(2, ref.rc());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (region.transferred() < region.count()) {
+            region.transferTo(Channels.newChannel(out), region.transferred());
+        }
+        Assert.assertTrue(region.release());
+        Assert.assertEquals(1, ref.rc());
+        byte[] expected = new byte[6000];
+        System.arraycopy(content, 0, expected, 0, expected.length);
+        Assert.assertArrayEquals(expected, out.toByteArray());
+        Assert.assertEquals(content[0], ref.dereference(0)); // channel still open
+        ref.release();
+    }
+
+    @Test
+    public void asyncTest() throws Exception {
+        byte[] content = new byte[100000];
+        new Random(42).nextBytes(content);
+        RAFileRef ref = TestFiles.fileRef(content);
+        List<CompletableFuture<byte[]>> reads = new ArrayList<>();
+        for (DataRef chunk : ref.split(10, 10000)) {
+            reads.add(((AsyncDataRef) chunk).readAsync(0, chunk.size()));
+            chunk.release(); // the operation keeps the file alive
+        }
+        for (int i = 0; i < reads.size(); i++) {
+            byte[] expected = Arrays.copyOfRange(content, i * 10000, (i + 1) * 10000);
+            Assert.assertArrayEquals(expected, reads.get(i).get());
+        }
+        byte[] patch = new byte[]{1, 2, 3, 4};
+        ref.writeAsync(99996, patch).get();
+        Assert.assertArrayEquals(patch, ref.dereference(99996, 100000));
+        ByteBuf buf = Unpooled.directBuffer();
+        buf.writeByte(42);
+        ref.copyToAsync(buf).get();
+        Assert.assertEquals(content.length + 1, buf.readableBytes());
+        Assert.assertEquals(content[0], buf.getByte(1));
+        try {
+            ref.readAsync(0, 100001).get();
+            Assert.fail("Should have thrown");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IndexOutOfBoundsException);
+        }
+        Assert.assertEquals(1, ref.rc());
+        ref.release();
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void asyncImmediateFailureTest() throws Exception {
+        RAFileRef ref = TestFiles.fileRef(new byte[1000]);
+        // the channel rejects read-only buffers right away instead of through the handler
+        ByteBuf readOnly = new UnpooledHeapByteBuf(UnpooledByteBufAllocator.DEFAULT, 1000, 1000) {
+            @Override
+            public ByteBuffer nioBuffer(int index, int length) {
+                return super.nioBuffer(index, length).asReadOnlyBuffer();
+            }
+        };
+        CompletableFuture<Void> f = ref.copyToAsync(readOnly);
+        try {
+            f.get();
+            Assert.fail("Should have failed");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IllegalArgumentException);
+        }
+        Assert.assertEquals(1, ref.rc());
+        ref.release();
+    }
+
+    @Test
+    public void primitiveAccessTest() throws IOException {
+        byte[] content = new byte[1000];
+        new Random(42).nextBytes(content);
+        RAFileRef file = TestFiles.fileRef(content);
+        DataRef partial = file.split(2, 500).iterator().next();
+        DataRef bytes = new ByteArrayRef(0, 500, content);
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            ByteBuffer expected = ByteBuffer.wrap(content).order(order);
+            for (DataRef ref : new DataRef[]{file, partial, bytes}) {
+                Assert.assertEquals(expected.get(3), ref.getByte(3));
+                Assert.assertEquals(expected.getShort(5), ref.getShort(5, order));
+                Assert.assertEquals(expected.getInt(492), ref.getInt(492, order));
+                Assert.assertEquals(expected.getLong(17), ref.getLong(17, order));
+                Assert.assertEquals(expected.getFloat(101), ref.getFloat(101, order), 0.0f);
+                Assert.assertEquals(expected.getDouble(200), ref.getDouble(200, order), 0.0);
+                try {
+                    ref.getLong(ref.size() - 7, order);
+                    Assert.fail("Should be out of bounds");
+                } catch (IndexOutOfBoundsException ex) {
+                    // expected
+                }
+            }
+        }
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            file.putLong(8, 0x0102030405060708L, order);
+            Assert.assertEquals(0x0102030405060708L, partial.getLong(8, order));
+            partial.putInt(20, 42, order);
+            Assert.assertEquals(42, file.getInt(20, order));
+            partial.putDouble(30, Math.PI, order);
+            Assert.assertEquals(Math.PI, file.getDouble(30, order), 0.0);
+            bytes.putShort(40, (short) -2, order);
+            Assert.assertEquals(-2, ByteBuffer.wrap(content).order(order).getShort(40));
+        }
+        partial.release();
+        file.release();
+    }
+}
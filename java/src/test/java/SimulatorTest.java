@@ -0,0 +1,131 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.cachesim.Policy;
+import com.lkroll.common.cachesim.Simulator;
+import com.lkroll.common.cachesim.Traces;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class SimulatorTest {
+
+    @Test
+    public void traceFormatsTest() throws IOException {
+        long[] trace = Traces.concat(Traces.zipf(1000, 0.8, 500, 1), Traces.scan(-100, 10), new long[]{Long.MAX_VALUE, Long.MIN_VALUE});
+        Path text = Files.createTempFile("trace", ".txt");
+        Path binary = Files.createTempFile("trace", ".bin");
+        try {
+            Traces.writeText(text, trace);
+            Assert.assertArrayEquals(trace, Traces.readText(text));
+            Traces.writeBinary(binary, trace);
+            Assert.assertEquals(trace.length * 8L, Files.size(binary));
+            Assert.assertArrayEquals(trace, Traces.readBinary(binary));
+            Files.write(text, "# a comment\n\n1\n 2 \n3\n".getBytes("UTF-8"));
+            Assert.assertArrayEquals(new long[]{1, 2, 3}, Traces.readText(text));
+        } finally {
+            Files.delete(text);
+            Files.delete(binary);
+        }
+    }
+
+    @Test
+    public void generatorsTest() {
+        Assert.assertArrayEquals(Traces.zipf(100, 1.0, 1000, 5), Traces.zipf(100, 1.0, 1000, 5));
+        long[] zipf = Traces.zipf(100, 1.0, 10000, 5);
+        int zeros = 0;
+        int last = 0;
+        for (long key : zipf) {
+            Assert.assertTrue(key >= 0 && key < 100);
+            zeros += (key == 0) ? 1 : 0;
+            last += (key == 99) ? 1 : 0;
+        }
+        Assert.assertTrue(zeros > 10 * last);
+        Assert.assertArrayEquals(new long[]{0, 1, 2, 0, 1, 2}, Traces.loop(3, 2));
+        Assert.assertArrayEquals(new long[]{5, 6, 7}, Traces.scan(5, 3));
+        long[] scanned = Traces.withScans(new long[]{1, 2, 3, 4}, 2, 2);
+        Assert.assertEquals(8, scanned.length);
+        Assert.assertEquals(1, scanned[2]);
+        Assert.assertEquals(3, scanned[6]);
+    }
+
+    @Test
+    public void hitRatioCurveTest() {
+        long[] trace = Traces.zipf(10000, 0.9, 100000, 3);
+        int[] capacities = {100, 1000, 5000};
+        List<Simulator.Result> results = Simulator.run(Policy.standard(), capacities, trace);
+        Assert.assertEquals(capacities.length * Policy.standard().size(), results.size());
+        double previousLru = 0.0;
+        for (Simulator.Result r : results) {
+            Assert.assertEquals(trace.length, r.hits + r.misses);
+            if (r.policy.equals("lru")) {
+                Assert.assertTrue(r.hitRatio() > previousLru);
+                previousLru = r.hitRatio();
+            }
+        }
+        // the two plain LRU implementations must agree exactly
+        for (int i = 0; i < results.size(); i++) {
+            Simulator.Result r = results.get(i);
+            if (r.policy.equals("long-lru")) {
+                Simulator.Result lru = results.stream()
+                        .filter(x -> x.policy.equals("lru") && x.capacity == r.capacity).findFirst().get();
+                Assert.assertEquals(lru.hits, r.hits);
+            }
+        }
+        String report = Simulator.report(results);
+        Assert.assertTrue(report, report.contains("tinylfu"));
+        Assert.assertTrue(report, report.contains("5000"));
+    }
+
+    @Test
+    public void loopTest() {
+        // a loop slightly larger than the cache is LRU's worst case
+        long[] trace = Traces.loop(1100, 20);
+        Simulator.Result lru = Simulator.run("lru", Policy.lru(1000), 1000, trace);
+        Simulator.Result tiny = Simulator.run("tinylfu", Policy.tinyLfu(1000), 1000, trace);
+        Assert.assertEquals(0, lru.hits);
+        Assert.assertTrue(tiny.toString(), tiny.hitRatio() > 0.5);
+    }
+
+    @Test
+    public void repeatedRunsTest() {
+        long[] trace = Traces.zipf(1000, 0.9, 10000, 5);
+        int[] capacities = {100};
+        List<Simulator.Result> once = Simulator.run(Policy.standard(), capacities, trace, 1);
+        List<Simulator.Result> repeated = Simulator.run(Policy.standard(), capacities, trace, 4);
+        Assert.assertEquals(once.size(), repeated.size());
+        for (int i = 0; i < once.size(); i++) {
+            // every run starts from a fresh cache
+            Assert.assertEquals(once.get(i).policy, repeated.get(i).policy);
+            Assert.assertEquals(once.get(i).hits, repeated.get(i).hits);
+        }
+        try {
+            Simulator.run(Policy.standard(), capacities, trace, 0);
+            Assert.fail("Zero runs should be rejected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
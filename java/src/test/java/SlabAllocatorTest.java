@@ -0,0 +1,69 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.ByteArrayRef;
+import com.lkroll.common.SlabAllocator;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class SlabAllocatorTest {
+
+    @Test
+    public void reuseTest() {
+        SlabAllocator alloc = new SlabAllocator(1024, 128, 4);
+        List<ByteArrayRef> refs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ByteArrayRef ref = alloc.copyOf(new byte[]{(byte) i, 1, 2, 3, 4, 5, 6, 7, 8, 9}, 0, 10);
+            refs.add(ref);
+        }
+        // 102 refs per slab
+        Assert.assertEquals(1, alloc.slabsCreated());
+        Assert.assertSame(refs.get(0).getBackingArray(), refs.get(99).getBackingArray());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals((byte) i, refs.get(i).dereference(0));
+        }
+        for (ByteArrayRef ref : refs) {
+            ref.release();
+        }
+        Assert.assertEquals(0, alloc.pooledSlabs()); // still the current slab
+        ByteArrayRef first = alloc.allocate(100); // needs a new slab, so the old one is retired and reused
+        Assert.assertEquals(1, alloc.slabsCreated());
+        Assert.assertEquals(1, alloc.slabsReused());
+        Assert.assertSame(refs.get(0).getBackingArray(), first.getBackingArray());
+        List<ByteArrayRef> more = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            more.add(alloc.allocate(100));
+        }
+        Assert.assertEquals(3, alloc.slabsCreated());
+        Assert.assertEquals(0, alloc.pooledSlabs());
+        first.release();
+        for (ByteArrayRef ref : more) {
+            ref.retain();
+            ref.release();
+            ref.release();
+        }
+        Assert.assertEquals(2, alloc.pooledSlabs()); // the full ones, the current one is still in use
+        Assert.assertEquals(1000, alloc.allocate(1000).size()); // too big for a slab
+    }
+}
@@ -0,0 +1,156 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.ByteArrayRef;
+import com.lkroll.common.DataRef;
+import com.lkroll.common.MemoryBudget;
+import com.lkroll.common.RAFileRef;
+import com.lkroll.common.SpillingDataRef;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class SpillingDataRefTest {
+
+    @Test
+    public void inMemoryTest() {
+        MemoryBudget budget = new MemoryBudget(100000);
+        SpillingDataRef builder = new SpillingDataRef(50000, budget, null);
+        byte[] content = new byte[20000];
+        new Random(42).nextBytes(content);
+        builder.append(content, 0, 10000).append(new ByteArrayRef(10000, 10000, content));
+        Assert.assertFalse(builder.isSpilled());
+        Assert.assertTrue(budget.used() >= 20000);
+        DataRef ref = builder.build();
+        Assert.assertTrue(ref instanceof ByteArrayRef);
+        Assert.assertArrayEquals(content, ref.dereference());
+        ref.release();
+        Assert.assertEquals(0, budget.used());
+    }
+
+    @Test
+    public void spillTest() {
+        MemoryBudget budget = new MemoryBudget(100000);
+        byte[] content = new byte[200000];
+        new Random(42).nextBytes(content);
+        SpillingDataRef builder = new SpillingDataRef(50000, budget, null);
+        for (int i = 0; i < content.length; i += 1000) {
+            builder.append(ByteArrayRef.wrap(Arrays.copyOfRange(content, i, i + 1000)));
+        }
+        Assert.assertTrue(builder.isSpilled());
+        Assert.assertEquals(0, budget.used());
+        DataRef ref = builder.build();
+        Assert.assertTrue(ref instanceof RAFileRef);
+        Assert.assertArrayEquals(content, ref.dereference());
+        File f = ((RAFileRef) ref).getFile();
+        // now spill because of the budget
+        Assert.assertTrue(budget.tryReserve(95000));
+        SpillingDataRef builder2 = new SpillingDataRef(50000, budget, null);
+        builder2.append(content, 0, 4000);
+        Assert.assertFalse(builder2.isSpilled());
+        builder2.append(content, 4000, 2000);
+        Assert.assertTrue(builder2.isSpilled());
+        builder2.append(ref);
+        DataRef ref2 = builder2.build();
+        Assert.assertEquals(206000, ref2.size());
+        Assert.assertArrayEquals(content, ref2.dereference(6000, 206000));
+        ref.release();
+        ref2.release();
+        Assert.assertFalse(f.exists());
+        budget.release(95000);
+        Assert.assertEquals(0, budget.used());
+    }
+
+    @Test
+    public void failedSpillTest() {
+        MemoryBudget budget = new MemoryBudget(100000);
+        byte[] content = new byte[6000];
+        new Random(42).nextBytes(content);
+        File missing = new File(System.getProperty("java.io.tmpdir"), "no-such-dir-" + System.nanoTime());
+        SpillingDataRef builder = new SpillingDataRef(5000, budget, missing);
+        builder.append(content, 0, 4000);
+        long used = budget.used();
+        try {
+            builder.append(content, 4000, 2000);
+            Assert.fail("Spilling into a missing directory should fail");
+        } catch (RuntimeException ex) {
+            // expected
+        }
+        Assert.assertFalse(builder.isSpilled());
+        Assert.assertEquals(4000, builder.size());
+        Assert.assertEquals(used, budget.used());
+        DataRef ref = builder.build();
+        Assert.assertArrayEquals(Arrays.copyOf(content, 4000), ref.dereference());
+        ref.release();
+        Assert.assertEquals(0, budget.used());
+    }
+
+    @Test
+    public void viewTest() {
+        MemoryBudget budget = new MemoryBudget(100000);
+        byte[] content = new byte[10000];
+        new Random(42).nextBytes(content);
+        DataRef ref = new SpillingDataRef(50000, budget, null).append(content).build();
+        List<DataRef> chunks = new ArrayList<>();
+        for (DataRef chunk : ref.split(4, 3000)) {
+            chunks.add(chunk);
+        }
+        Assert.assertEquals(4, chunks.size());
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 9000, 10000), chunks.get(3).dereference());
+        DataRef sub = chunks.get(1).split(2, 1000).iterator().next();
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 3000, 4000), sub.dereference());
+        ref.release();
+        Assert.assertTrue(budget.used() >= 10000); // the chunks still use the memory
+        for (DataRef chunk : chunks) {
+            chunk.release();
+        }
+        Assert.assertTrue(budget.used() >= 10000);
+        sub.release();
+        Assert.assertEquals(0, budget.used());
+    }
+
+    @Test
+    public void droppedRefTest() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(10000);
+        buildAndDrop(budget);
+        Assert.assertEquals(8000, budget.used());
+        boolean inMemory = false;
+        for (int i = 0; (i < 50) && !inMemory; i++) {
+            System.gc();
+            Thread.sleep(10);
+            SpillingDataRef builder = new SpillingDataRef(10000, budget, null);
+            builder.append(new byte[8000]);
+            inMemory = !builder.isSpilled();
+            builder.discard();
+        }
+        Assert.assertTrue(inMemory);
+        Assert.assertEquals(0, budget.used());
+    }
+
+    private static void buildAndDrop(MemoryBudget budget) {
+        new SpillingDataRef(10000, budget, null).append(new byte[8000]).build(); // never released
+    }
+}
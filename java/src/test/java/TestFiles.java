@@ -0,0 +1,55 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.MappedFileRef;
+import com.lkroll.common.RAFileRef;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Temp file fixtures shared by the file backed DataRef tests.
+ *
+ * The refs are marked for deletion, so the file goes away with the last
+ * release.
+ *
+ * @author lkroll
+ */
+public abstract class TestFiles {
+
+    public static RAFileRef fileRef(byte[] content) throws IOException {
+        File f = File.createTempFile("dataref", ".data");
+        RAFileRef ref = new RAFileRef(f, write(f, content));
+        ref.markForDeletion();
+        return ref;
+    }
+
+    public static MappedFileRef mapped(byte[] content, int segmentSize) throws IOException {
+        File f = File.createTempFile("mappedfileref", ".data");
+        MappedFileRef ref = new MappedFileRef(f, write(f, content), FileChannel.MapMode.READ_WRITE, segmentSize);
+        ref.markForDeletion();
+        return ref;
+    }
+
+    private static RandomAccessFile write(File f, byte[] content) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.write(content);
+        return raf;
+    }
+}
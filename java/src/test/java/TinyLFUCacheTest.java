@@ -0,0 +1,168 @@
+/* 
+* Copyright 2019 Lars Kroll
+* 
+* Permission is hereby granted, free of charge, to any person obtaining a copy of this software and 
+* associated documentation files (the "Software"), to deal in the Software without restriction, 
+* including without limitation the rights to use, copy, modify, merge, publish, distribute, 
+* sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is 
+* furnished to do so, subject to the following conditions:
+* 
+* The above copyright notice and this permission notice shall be included in all copies or 
+* substantial portions of the Software.
+* 
+* THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+* INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE 
+* AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, 
+* DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, 
+* OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+import com.lkroll.common.FrequencySketch;
+import com.lkroll.common.LRUCache;
+import com.lkroll.common.TinyLFUCache;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author lkroll
+ */
+public class TinyLFUCacheTest {
+
+    @Test
+    public void sketchTest() {
+        FrequencySketch sketch = new FrequencySketch(100);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("hot");
+        }
+        sketch.increment("cold");
+        Assert.assertTrue(sketch.frequency("hot") >= 10);
+        Assert.assertTrue(sketch.frequency("cold") >= 1);
+        Assert.assertTrue(sketch.frequency("hot") > sketch.frequency("cold"));
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("hot");
+        }
+        Assert.assertEquals(15, sketch.frequency("hot"));
+        // enough other additions to age the counters
+        for (int i = 0; i < 10000; i++) {
+            sketch.increment(i);
+        }
+        Assert.assertTrue(sketch.frequency("hot") < 15);
+    }
+
+    @Test
+    public void sketchSizeTest() {
+        Assert.assertEquals(8, FrequencySketch.tableSizeFor(-1));
+        Assert.assertEquals(8, FrequencySketch.tableSizeFor(5));
+        Assert.assertEquals(128, FrequencySketch.tableSizeFor(100));
+        Assert.assertEquals(1 << 30, FrequencySketch.tableSizeFor((1 << 30) - 1));
+        Assert.assertEquals(1 << 30, FrequencySketch.tableSizeFor(1 << 30));
+        Assert.assertEquals(1 << 30, FrequencySketch.tableSizeFor((1 << 30) + 1));
+        Assert.assertEquals(1 << 30, FrequencySketch.tableSizeFor(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void evictionTest() {
+        Set<Integer> evicted = new HashSet<>();
+        TinyLFUCache<Integer, Integer> cache = new TinyLFUCache<>(100, e -> evicted.add(e.getKey()));
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertNull(cache.put(i, i));
+            Assert.assertTrue(cache.size() <= cache.capacity());
+        }
+        Assert.assertEquals(100, cache.size());
+        Assert.assertEquals(900, evicted.size());
+        for (int i = 0; i < 1000; i++) {
+            Integer v = cache.get(i);
+            Assert.assertEquals(!evicted.contains(i), v != null);
+        }
+        Assert.assertEquals(Integer.valueOf(999), cache.put(999, 1));
+        Assert.assertEquals(Integer.valueOf(1), cache.remove(999));
+        Assert.assertEquals(99, cache.size());
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNull(cache.get(1));
+    }
+
+    @Test
+    public void tinyCapacityTest() {
+        TinyLFUCache<Integer, Integer> cache = new TinyLFUCache<>(1);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, i);
+            Assert.assertEquals(1, cache.size());
+        }
+    }
+
+    @Test
+    public void zipfTraceTest() {
+        List<Integer> trace = zipf(new Random(1), 10000, 0.9, 200000);
+        double lru = replayLRU(trace, 500);
+        double lfu = replayTinyLFU(trace, 500);
+        Assert.assertTrue("TinyLFU " + lfu + " vs LRU " + lru, lfu > lru);
+    }
+
+    @Test
+    public void scanTraceTest() {
+        // a Zipf distributed hot set, interrupted by long scans over keys that are never seen again
+        Random rand = new Random(2);
+        List<Integer> hot = zipf(rand, 2000, 0.8, 200000);
+        List<Integer> trace = new ArrayList<>();
+        int scanKey = 1000000;
+        for (int i = 0; i < hot.size(); i++) {
+            trace.add(hot.get(i));
+            if (i % 5000 == 0) {
+                for (int j = 0; j < 2000; j++) {
+                    trace.add(scanKey++);
+                }
+            }
+        }
+        double lru = replayLRU(trace, 1000);
+        double lfu = replayTinyLFU(trace, 1000);
+        Assert.assertTrue("TinyLFU " + lfu + " vs LRU " + lru, lfu > lru + 0.05);
+    }
+
+    private static List<Integer> zipf(Random rand, int keys, double skew, int length) {
+        double[] cdf = new double[keys];
+        double sum = 0.0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        List<Integer> trace = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            int pos = Arrays.binarySearch(cdf, rand.nextDouble() * sum);
+            trace.add((pos < 0) ? -(pos + 1) : pos);
+        }
+        return trace;
+    }
+
+    private static double replayLRU(List<Integer> trace, int capacity) {
+        LRUCache<Integer, Integer> cache = new LRUCache<>(capacity);
+        int hits = 0;
+        for (Integer key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return ((double) hits) / trace.size();
+    }
+
+    private static double replayTinyLFU(List<Integer> trace, int capacity) {
+        TinyLFUCache<Integer, Integer> cache = new TinyLFUCache<>(capacity);
+        int hits = 0;
+        for (Integer key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return ((double) hits) / trace.size();
+    }
+}